@@ -90,7 +90,7 @@ public class File extends Base {
 
         try (Pool pool = globals.pool()) {
             cacheroot = globals.cacheroot();
-            distributor = Distributor.open(cacheroot, cluster.connect(pool), docroot, indexName);
+            distributor = Distributor.open(cacheroot, cluster.connect(pool), docroot, indexName, globals.parallel());
             changed = distributor.publish(module);
             index = distributor.close();
         }
@@ -36,15 +36,16 @@ public class Globals {
     private final String user;
     private final boolean noLock;
     private final int await;
+    private final int parallel;
 
     private Network lazyNetwork;
     private HostProperties lazyProperties;
 
-    public Globals(World world, Console console, Main.Commandline commandline, String user, boolean noLock, int await) {
-        this(world, console, commandline, user, noLock, await, null, null);
+    public Globals(World world, Console console, Main.Commandline commandline, String user, boolean noLock, int await, int parallel) {
+        this(world, console, commandline, user, noLock, await, parallel, null, null);
     }
 
-    public Globals(World world, Console console, Main.Commandline commandline, String user, boolean noLock, int await,
+    public Globals(World world, Console console, Main.Commandline commandline, String user, boolean noLock, int await, int parallel,
                    HostProperties properties, Network net) {
         this.world = world;
         this.console = console;
@@ -52,6 +53,7 @@ public class Globals {
         this.noLock = noLock;
         this.user = user;
         this.await = await;
+        this.parallel = parallel;
 
         this.lazyProperties = properties;
         this.lazyNetwork = net;
@@ -75,6 +77,11 @@ public class Globals {
         return lazyNetwork;
     }
 
+    /** @return number of resources published at the same time */
+    public int parallel() {
+        return parallel;
+    }
+
     public Pool pool() {
         return Pool.create(world, noLock ? null : lockInfo(), await);
     }
@@ -51,7 +51,7 @@ public class Main {
             cli.add(PackageVersion.class, "version");
             cli.addDefault(new Help(console, help()), "help");
             if (globals == null) {
-                cli.begin(Globals.class, "-user=unknown@all -no-lock=false -await=600");
+                cli.begin(Globals.class, "-user=unknown@all -no-lock=false -await=600 -parallel=4");
             } else {
                 cli.begin(globals);
             }
@@ -103,6 +103,7 @@ public class Main {
         help.append("global options\n");
         help.append("  '-await' seconds          how long to wait for a lock before giving up; default is 600\n");
         help.append("  '-user' email             written to lock files to know who's currently holding the lock; defaults to unknown@all\n");
+        help.append("  '-parallel' n             number of resources fetched, hashed and uploaded at the same time; default is 4\n");
 
         return help.toString();
     }
@@ -74,7 +74,7 @@ public class Scm extends Base {
         cacheroot = globals.cacheroot();
         module = moduleConfig.create(cacheroot, true, properties.secrets, properties.bitbucketHosts, null);
         try (Pool pool = globals.pool()) {
-            distributor = Distributor.open(cacheroot, cluster.connect(pool), docroot, indexName);
+            distributor = Distributor.open(cacheroot, cluster.connect(pool), docroot, indexName, globals.parallel());
             changed = distributor.publish(module);
             index = distributor.close();
         }
@@ -54,7 +54,7 @@ public class War extends Base {
         properties = globals.properties();
         try (Pool pool = globals.pool()) {
             cacheroot = globals.cacheroot();
-            engine = new WarEngine(cacheroot, Distributor.open(cacheroot, cluster.connect(pool), docroot, indexName),
+            engine = new WarEngine(cacheroot, Distributor.open(cacheroot, cluster.connect(pool), docroot, indexName, globals.parallel()),
                     properties.modern, properties.secrets, properties.bitbucketHosts, war, outputNodesFile, nodes);
             engine.run();
         }
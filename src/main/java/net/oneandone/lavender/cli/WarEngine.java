@@ -18,6 +18,7 @@ package net.oneandone.lavender.cli;
 import net.oneandone.lavender.config.Secrets;
 import net.oneandone.lavender.filter.Lavender;
 import net.oneandone.lavender.index.Index;
+import net.oneandone.lavender.index.MappedIndex;
 import net.oneandone.lavender.modules.Distributor;
 import net.oneandone.lavender.modules.Module;
 import net.oneandone.lavender.modules.NodeModule;
@@ -129,7 +130,7 @@ public class WarEngine {
     }
 
     /**
-     * Add lavender.idx and lavender.nodes to war file using ZipFileSystemProvider. It assumes that the
+     * Add lavender.idx, its binary companion lavender.idx.bin and lavender.nodes to war file using ZipFileSystemProvider. It assumes that the
      * WEB-INF directory already in the war file
      *
      * @param webIndex Lavender index for lavender.idx file containing mappings from originalPath to
@@ -148,6 +149,11 @@ public class WarEngine {
             webIndex.save(output);
             Files.copy(new ByteArrayInputStream(output.toByteArray()), entry, StandardCopyOption.REPLACE_EXISTING);
 
+            entry = fs.getPath(Lavender.LAVENDER_IDX_BIN);
+            output = new ByteArrayOutputStream();
+            MappedIndex.save(webIndex, output);
+            Files.copy(new ByteArrayInputStream(output.toByteArray()), entry, StandardCopyOption.REPLACE_EXISTING);
+
             entry = fs.getPath(Lavender.LAVENDER_NODES);
             Files.copy(nodesFile.newInputStream(), entry, StandardCopyOption.REPLACE_EXISTING);
         }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.index.StripedPool;
+
+/**
+ * Byte arrays of a fixed size, recycled in a striped pool where the stripe is selected by the current thread.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final StripedPool<byte[]> pool;
+
+    /** @param poolStripes number of pooled buffers, rounded up to a power of 2 */
+    public BufferPool(int bufferSize, int poolStripes) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("invalid buffer size: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.pool = new StripedPool<>(poolStripes);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public byte[] borrow() {
+        byte[] result;
+
+        result = pool.borrow();
+        return result == null ? new byte[bufferSize] : result;
+    }
+
+    /** If the stripe is occupied, the buffer is left to the garbage collector. */
+    public void giveBack(byte[] buffer) {
+        pool.giveBack(buffer);
+    }
+}
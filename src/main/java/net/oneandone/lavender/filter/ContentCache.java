@@ -0,0 +1,294 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.index.Hex;
+import net.oneandone.lavender.index.Md5;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Byte-bounded LRU cache for resource content served by the development filter. Keys are built by the caller from
+ * origin and content id, so a changed resource gets a new key and stale entries simply age out. Entries evicted from
+ * memory optionally spill to a directory, which is bounded by bytes as well. Thread-safe.
+ */
+public class ContentCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ContentCache.class);
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, byte[]> map;
+    private long bytes;
+
+    /** Null if evicted entries are dropped */
+    private final Path spillDir;
+    private final long maxSpillBytes;
+
+    /** Sizes of spilled entries by key; guarded by itself */
+    private final LinkedHashMap<String, Integer> spilled;
+    private long spillBytes;
+
+    private final LongAdder hits;
+    private final LongAdder spillHits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    public ContentCache(long maxBytes) {
+        this(maxBytes, null, 0);
+    }
+
+    /** @param spillDir null to drop evicted entries; existing files are removed */
+    public ContentCache(long maxBytes, Path spillDir, long maxSpillBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("" + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.map = new LinkedHashMap<>(16, 0.75f, true);
+        this.bytes = 0;
+        this.spillDir = spillDir;
+        this.maxSpillBytes = maxSpillBytes;
+        this.spilled = new LinkedHashMap<>(16, 0.75f, true);
+        this.spillBytes = 0;
+        this.hits = new LongAdder();
+        this.spillHits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        if (spillDir != null) {
+            clearSpillDir();
+        }
+    }
+
+    /** Entries larger than this are not cached */
+    public int getMaxEntrySize() {
+        return (int) Math.min(Integer.MAX_VALUE, maxBytes / 4);
+    }
+
+    /** @return null if not found; the array must not be modified */
+    public byte[] lookup(String key) {
+        byte[] result;
+
+        synchronized (map) {
+            result = map.get(key);
+        }
+        if (result != null) {
+            hits.increment();
+            return result;
+        }
+        result = unspill(key);
+        if (result != null) {
+            spillHits.increment();
+            put(key, result);
+            return result;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /** The array must not be modified afterwards; entries exceeding the maximum entry size are ignored */
+    public void put(String key, byte[] content) {
+        List<Map.Entry<String, byte[]>> evicted;
+        Iterator<Map.Entry<String, byte[]>> iter;
+        Map.Entry<String, byte[]> eldest;
+        byte[] prev;
+
+        if (content.length > getMaxEntrySize()) {
+            return;
+        }
+        evicted = null;
+        synchronized (map) {
+            prev = map.put(key, content);
+            if (prev != null) {
+                bytes -= prev.length;
+            }
+            bytes += content.length;
+            iter = map.entrySet().iterator();
+            while (bytes > maxBytes) {
+                eldest = iter.next();
+                bytes -= eldest.getValue().length;
+                if (spillDir != null) {
+                    if (evicted == null) {
+                        evicted = new ArrayList<>();
+                    }
+                    evicted.add(Map.entry(eldest.getKey(), eldest.getValue()));
+                }
+                iter.remove();
+                evictions.increment();
+            }
+        }
+        if (evicted != null) {
+            // outside the lock, lookups don't wait for the disk
+            for (Map.Entry<String, byte[]> entry : evicted) {
+                spill(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    //-- spilling
+
+    private void spill(String key, byte[] content) {
+        Path file;
+        Path tmp;
+        List<String> removed;
+        Iterator<Map.Entry<String, Integer>> iter;
+        Map.Entry<String, Integer> eldest;
+        Integer prev;
+
+        if (content.length > maxSpillBytes) {
+            return;
+        }
+        file = file(key);
+        try {
+            tmp = Files.createTempFile(spillDir, "spill", ".tmp");
+            Files.write(tmp, content);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("cannot spill " + key + ": " + e.getMessage());
+            return;
+        }
+        removed = new ArrayList<>();
+        synchronized (spilled) {
+            prev = spilled.put(key, content.length);
+            if (prev != null) {
+                spillBytes -= prev;
+            }
+            spillBytes += content.length;
+            iter = spilled.entrySet().iterator();
+            while (spillBytes > maxSpillBytes) {
+                eldest = iter.next();
+                spillBytes -= eldest.getValue();
+                removed.add(eldest.getKey());
+                iter.remove();
+            }
+        }
+        for (String k : removed) {
+            delete(file(k));
+        }
+    }
+
+    /** @return null if not spilled */
+    private byte[] unspill(String key) {
+        Integer size;
+        Path file;
+
+        if (spillDir == null) {
+            return null;
+        }
+        synchronized (spilled) {
+            size = spilled.remove(key);
+            if (size == null) {
+                return null;
+            }
+            spillBytes -= size;
+        }
+        file = file(key);
+        try {
+            return Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOG.warn("cannot read spilled " + key + ": " + e.getMessage());
+            return null;
+        } finally {
+            delete(file);
+        }
+    }
+
+    private Path file(String key) {
+        return spillDir.resolve(Hex.encodeString(Md5.md5(key.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("cannot delete " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void clearSpillDir() {
+        try {
+            Files.createDirectories(spillDir);
+            try (Stream<Path> files = Files.list(spillDir)) {
+                files.forEach(ContentCache::delete);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("invalid spill directory " + spillDir + ": " + e.getMessage(), e);
+        }
+    }
+
+    //-- statistics
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /** @return bytes held in memory */
+    public long getBytes() {
+        synchronized (map) {
+            return bytes;
+        }
+    }
+
+    public long getSpillBytes() {
+        synchronized (spilled) {
+            return spillBytes;
+        }
+    }
+
+    /** @return hits in memory and in the spill directory */
+    public long getHits() {
+        return hits.sum() + spillHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return 0 without lookups */
+    public double getHitRatio() {
+        long h;
+        long total;
+
+        h = getHits();
+        total = h + getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /** @param reset true to start over after the snapshot; memory use is not reset */
+    public void snapshot(boolean reset, Map<String, Long> dest) {
+        dest.put("devCache.hits", reset ? hits.sumThenReset() : hits.sum());
+        dest.put("devCache.spillHits", reset ? spillHits.sumThenReset() : spillHits.sum());
+        dest.put("devCache.misses", reset ? misses.sumThenReset() : misses.sum());
+        dest.put("devCache.evictions", reset ? evictions.sumThenReset() : evictions.sum());
+        dest.put("devCache.bytes", getBytes());
+        dest.put("devCache.spillBytes", getSpillBytes());
+    }
+}
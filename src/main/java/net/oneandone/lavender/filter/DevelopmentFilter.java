@@ -25,6 +25,9 @@ import net.oneandone.sushi.fs.file.FileNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -36,8 +39,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by awiegant on 04.03.16.
@@ -45,9 +53,80 @@ import java.util.List;
 public class DevelopmentFilter implements Filter {
     private static final Logger LOG = LoggerFactory.getLogger(ProductionFilter.class);
 
+    /** Init parameter: maximum number of bytes of resource content cached in memory; 0 disables the cache */
+    public static final String DEV_CACHE = "devCache";
+
+    /** Init parameter: maximum number of bytes of evicted content kept in the lavender cache directory; 0 disables spilling */
+    public static final String DEV_CACHE_SPILL = "devCacheSpill";
+
+    private static final int DEFAULT_DEV_CACHE = 32 * 1024 * 1024;
+
+    /** Init parameter: number of threads fetching scm resources for asynchronous requests; 0 fetches in the request thread */
+    public static final String DEV_FETCH_THREADS = "devFetchThreads";
+
+    /** Init parameter: maximum number of concurrent fetches from one scm host */
+    public static final String DEV_FETCH_PER_HOST = "devFetchPerHost";
+
+    /** Init parameter: maximum number of fetches waiting for a thread or a host */
+    public static final String DEV_FETCH_QUEUE = "devFetchQueue";
+
+    /**
+     * Init parameter: seconds between background scans of the modules in use; 0 disables background scans, requests then
+     * re-scan modules themselves. Override per module type with e.g. devRefresh.bitbucket or devRefresh.node. Local node
+     * modules default to 0, so edited files show up with the next request.
+     */
+    public static final String DEV_REFRESH = "devRefresh";
+
+    /** Asynchronous requests time out if a fetch takes longer */
+    private static final long ASYNC_TIMEOUT = 5 * 60 * 1000;
+
+    /** Module type of a resource class, e.g. "bitbucket" for BitbucketResource */
+    private static final ClassValue<String> MODULE_TYPES = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            String name;
+
+            name = type.getSimpleName();
+            if (name.endsWith("Resource") && name.length() > 8) {
+                name = name.substring(0, name.length() - 8);
+            }
+            return name.toLowerCase();
+        }
+    };
+
     private FilterConfig filterConfig;
+
+    /** Not modified after init; modules are thread-safe */
     private List<Module> modules;
 
+    /** Built from modules */
+    private ModuleDispatcher dispatcher;
+
+    private final Metrics metrics = new Metrics();
+
+    /** Null if disabled */
+    private ContentCache contentCache;
+
+    /** Null to fetch in the request thread */
+    private HostLimitedExecutor fetcher;
+
+    /** Null if requests re-scan modules */
+    private ModuleRefresher refresher;
+
+    public DevelopmentFilter() {
+    }
+
+    /** Without init, for tests */
+    DevelopmentFilter(FilterConfig filterConfig, List<Module> modules, ContentCache contentCache, HostLimitedExecutor fetcher,
+                      ModuleRefresher refresher) {
+        this.filterConfig = filterConfig;
+        this.modules = modules;
+        this.dispatcher = new ModuleDispatcher(modules);
+        this.contentCache = contentCache;
+        this.fetcher = fetcher;
+        this.refresher = refresher;
+    }
+
     @Override
     public void init(FilterConfig init) throws ServletException {
         long started;
@@ -63,7 +142,11 @@ public class DevelopmentFilter implements Filter {
             properties = HostProperties.load(HostProperties.file(world), false);
             FileNode cache = properties.cacheroot();
             modules = loadModulesFromWebapp(webapp, properties, cache);
-        } catch (IOException | URISyntaxException e) {
+            dispatcher = new ModuleDispatcher(modules);
+            contentCache = contentCache(init, cache);
+            fetcher = fetcher(init);
+            refresher = refresher(init, modules);
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
             e.printStackTrace();
             throw new ServletException("Could not initialize Lavender development filter", e);
         }
@@ -72,6 +155,51 @@ public class DevelopmentFilter implements Filter {
 
     }
 
+    private static ContentCache contentCache(FilterConfig init, FileNode cacheroot) throws ServletException {
+        int size;
+        int spill;
+
+        size = ProductionFilter.intParameter(init, DEV_CACHE, DEFAULT_DEV_CACHE);
+        if (size <= 0) {
+            return null;
+        }
+        spill = ProductionFilter.intParameter(init, DEV_CACHE_SPILL, 0);
+        return new ContentCache(size, spill > 0 ? cacheroot.join("dev-content").toPath() : null, spill);
+    }
+
+    private static HostLimitedExecutor fetcher(FilterConfig init) throws ServletException {
+        int threads;
+
+        threads = ProductionFilter.intParameter(init, DEV_FETCH_THREADS, 16);
+        if (threads <= 0) {
+            return null;
+        }
+        return new HostLimitedExecutor("lavender-fetch", threads, ProductionFilter.intParameter(init, DEV_FETCH_PER_HOST, 4),
+                ProductionFilter.intParameter(init, DEV_FETCH_QUEUE, 1000));
+    }
+
+    static ModuleRefresher refresher(FilterConfig init, List<Module> modules) throws ServletException {
+        int dflt;
+        Map<String, Long> intervals;
+        String type;
+        ModuleRefresher result;
+
+        dflt = ProductionFilter.intParameter(init, DEV_REFRESH, 5);
+        intervals = new HashMap<>();
+        for (Module module : modules) {
+            type = ModuleRefresher.type(module);
+            if (!intervals.containsKey(type)) {
+                intervals.put(type, ProductionFilter.intParameter(init, DEV_REFRESH + "." + type, "node".equals(type) ? 0 : dflt) * 1000L);
+            }
+        }
+        if (!intervals.values().stream().anyMatch(interval -> interval > 0)) {
+            return null;
+        }
+        result = new ModuleRefresher(modules, module -> intervals.get(ModuleRefresher.type(module)), 2);
+        result.start();
+        return result;
+    }
+
     @Override
     public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse,
                          FilterChain chain) throws IOException, ServletException {
@@ -86,20 +214,56 @@ public class DevelopmentFilter implements Filter {
 
     @Override
     public void destroy() {
-        // nothing to do
+        if (fetcher != null) {
+            fetcher.shutdown();
+        }
+        if (refresher != null) {
+            refresher.shutdown();
+        }
     }
 
     public int getModulesCount() {
         return modules.size();
     }
 
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /** @return null if disabled */
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * Adds fetch latencies and content cache counters to dest.
+     * @param reset true to start over after the snapshot
+     */
+    public void snapshot(boolean reset, Map<String, Long> dest) {
+        metrics.snapshot(reset, dest);
+        if (contentCache != null) {
+            contentCache.snapshot(reset, dest);
+        }
+        if (refresher != null) {
+            refresher.snapshot(reset, dest);
+        }
+    }
+
     List<Module> loadModulesFromWebapp(Node webapp, HostProperties properties, FileNode cache) throws IOException {
         return NodeModule.fromWebapp(cache, false, webapp, properties.secrets, properties.bitbucketHosts);
     }
 
+    /**
+     * Resources fetched from a remote host are served asynchronously if the request supports it: the fetch runs in the
+     * fetcher, so a slow scm host does not block container threads. Local files are served in the request thread, and
+     * so is everything behind the production filter in prod/dev mix mode: it closes its response wrapper and recycles
+     * the processor as soon as the chain returns.
+     */
     public boolean intercept(HttpServletRequest request, HttpServletResponse response) throws IOException {
         String path;
         Resource resource;
+        boolean withBody;
+        String host;
 
         path = request.getPathInfo();
         if (path == null || !path.startsWith("/")) {
@@ -113,31 +277,163 @@ public class DevelopmentFilter implements Filter {
 
         switch (request.getMethod()) {
             case "GET":
-                doGetRequest(resource, request, response, true);
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug(response.getStatus() + " GET " + path + " -> " + resource.getOrigin());
-                }
-                return true;
+                withBody = true;
+                break;
             case "HEAD":
-                doGetRequest(resource, request, response, false);
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug(response.getStatus() + " HEAD " + path + " -> " + resource.getOrigin());
-                }
-                return true;
+                withBody = false;
+                break;
             default:
                 return false;
         }
+        host = resource.getRemoteHostOpt();
+        if (host != null && fetcher != null && request.isAsyncSupported() && !(response instanceof LavenderizeHttpServletResponse)) {
+            serveAsync(host, path, resource, request, response, withBody);
+        } else {
+            doGetRequest(resource, request, response, withBody);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(response.getStatus() + " " + request.getMethod() + " " + path + " -> " + resource.getOrigin());
+            }
+        }
+        return true;
     }
 
-    private synchronized Resource lookup(String resourcePath) throws IOException {
+    private void serveAsync(String host, String path, Resource resource, HttpServletRequest request, HttpServletResponse response,
+                            boolean withBody) throws IOException {
+        AsyncFetch async;
+
+        async = new AsyncFetch(request.startAsync(request, response), response);
+        try {
+            fetcher.execute(host, () -> {
+                if (!async.claim()) {
+                    return; // timed out while waiting for a thread
+                }
+                try {
+                    doGetRequest(resource, request, response, withBody);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(response.getStatus() + " " + request.getMethod() + " " + path + " -> " + resource.getOrigin() + " (async)");
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOG.error(path + ": fetch failed: " + resource.getOrigin(), e);
+                    if (!response.isCommitted()) {
+                        sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                } finally {
+                    async.complete();
+                }
+            }, () -> {
+                // filter destroyed before the fetch started
+                async.abandon(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn(path + ": " + e.getMessage());
+            async.abandon(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Guards the response of an asynchronous request against the fetch task and the container racing for it: whoever
+     * claims the response first writes it, and the request is completed exactly once. After a timeout or an error,
+     * the container recycles request and response, so the fetch task must not touch them anymore.
+     */
+    static class AsyncFetch implements AsyncListener {
+        private final AsyncContext context;
+        private final HttpServletResponse response;
+
+        /** true once the fetch task or an error path owns the response */
+        private final AtomicBoolean claimed;
+
+        /** true once complete was called or the container gave up on the request */
+        private final AtomicBoolean finished;
+
+        AsyncFetch(AsyncContext context, HttpServletResponse response) {
+            this.context = context;
+            this.response = response;
+            this.claimed = new AtomicBoolean();
+            this.finished = new AtomicBoolean();
+            context.setTimeout(ASYNC_TIMEOUT);
+            context.addListener(this);
+        }
+
+        /** @return false if the response was already answered; the caller must not touch it then */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        void complete() {
+            if (finished.compareAndSet(false, true)) {
+                context.complete();
+            }
+        }
+
+        /** Answers status unless the response was claimed before, and completes the request */
+        void abandon(int status) {
+            if (finished.compareAndSet(false, true)) {
+                try {
+                    if (claim()) {
+                        sendError(response, status);
+                    }
+                } finally {
+                    context.complete();
+                }
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            LOG.warn("async fetch timed out");
+            abandon(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            LOG.warn("async fetch failed: " + event.getThrowable());
+            abandon(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    private static void sendError(HttpServletResponse response, int status) {
+        try {
+            response.sendError(status);
+        } catch (IOException e) {
+            LOG.debug("cannot send error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Thread-safe: modules scan at most once at a time, concurrent lookups of the same module wait for that scan.
+     * Modules refreshed in the background answer from their current entries; they are re-scanned in the background if
+     * a resource is missing or a local file is outdated. Remote resources are not checked for being outdated, the
+     * background scan replaces that check. Other modules are re-scanned by the request.
+     */
+    private Resource lookup(String resourcePath) throws IOException {
+        Module[] candidates;
         Resource resource;
+        boolean background;
 
+        candidates = dispatcher.candidates(resourcePath);
         // lookup cached stuff first
-        for (Module module : modules) {
+        for (Module module : candidates) {
             if (module.loadedEntries() != null) {
+                background = refresher != null && refresher.isRefreshed(module);
                 resource = module.probe(resourcePath);
                 if (resource != null) {
-                    if (resource.isOutdated()) {
+                    if (background) {
+                        if (resource.getRemoteHostOpt() == null && resource.isOutdated()) {
+                            LOG.info(resource.getOrigin() + ": outdated");
+                            refresher.refreshSoon(module);
+                        } else {
+                            refresher.used(module);
+                            return resource;
+                        }
+                    } else if (resource.isOutdated()) {
                         LOG.info(resource.getOrigin() + ": outdated");
                     } else {
                         return resource;
@@ -145,9 +441,18 @@ public class DevelopmentFilter implements Filter {
                 }
             }
         }
-        for (Module module : modules) {
+        for (Module module : candidates) {
             if (module.matches(resourcePath) != null) {
-                module.softInvalidateEntries();
+                if (refresher != null && refresher.isRefreshed(module)) {
+                    if (module.loadedEntries() != null) {
+                        // not found or outdated above: don't scan in the request thread
+                        refresher.refreshSoon(module);
+                        continue;
+                    }
+                    refresher.used(module);
+                } else {
+                    module.softInvalidateEntries();
+                }
                 resource = module.probe(resourcePath);
                 if (resource != null) {
                     return resource;
@@ -158,13 +463,19 @@ public class DevelopmentFilter implements Filter {
     }
 
 
-    // TODO: synchronized fixes image corruption problems with concurrent requests - but I don't understand why :(
-    public synchronized void doGetRequest(Resource resource, HttpServletRequest request, HttpServletResponse response, boolean withBody) throws IOException {
+    /**
+     * Thread-safe. Concurrent requests used to corrupt images because resources copied through World.getBuffer(),
+     * a single buffer shared by all threads; resources now use a buffer of their own.
+     */
+    public void doGetRequest(Resource resource, HttpServletRequest request, HttpServletResponse response, boolean withBody) throws IOException {
         String etag;
         String contentType;
         ServletOutputStream out;
         String previousEtag;
-        ByteArrayOutputStream buffer;
+        String key;
+        byte[] content;
+        CapturingOutputStream capture;
+        long started;
 
         etag = etag(resource.getContentId());
         response.setHeader("ETag", etag);
@@ -177,16 +488,85 @@ public class DevelopmentFilter implements Filter {
         if (etag.equals(previousEtag)) {
             LOG.debug("ETag match: returning 304 Not Modified: " + resource.getResourcePath());
             response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
-        } else  { // first time through - set last modified time to now
-            buffer = new ByteArrayOutputStream(1024 * 100);
-            resource.writeTo(buffer);
-            if (withBody) {
-                response.setBufferSize(4096);
-                response.setContentLength(buffer.size());
-                out = response.getOutputStream();
-                buffer.writeTo(out);
+        } else if (withBody) {
+            if (contentCache == null) {
+                key = null;
+                content = null;
+            } else {
+                // the content id changes with the content, so entries never have to be invalidated
+                key = resource.getOrigin() + " " + resource.getContentId();
+                content = contentCache.lookup(key);
+            }
+            if (content != null) {
+                response.setContentLength(content.length);
+                response.getOutputStream().write(content);
+                return;
+            }
+            // stream without buffering the whole resource; the length is unknown, so the response is chunked
+            response.setBufferSize(4096);
+            out = response.getOutputStream();
+            started = System.nanoTime();
+            if (key == null) {
+                resource.writeTo(out);
+            } else {
+                capture = new CapturingOutputStream(out, contentCache.getMaxEntrySize());
+                resource.writeTo(capture);
+                content = capture.getCapturedOpt();
+                if (content != null) {
+                    contentCache.put(key, content);
+                }
+            }
+            metrics.fetched(MODULE_TYPES.get(resource.getClass()), System.nanoTime() - started);
+        }
+    }
+
+    /** Passes bytes to dest and keeps a copy until the limit is exceeded. Does not close dest. */
+    private static class CapturingOutputStream extends OutputStream {
+        private final OutputStream dest;
+        private final int limit;
+
+        /** Null after the limit was exceeded */
+        private ByteArrayOutputStream copy;
+
+        CapturingOutputStream(OutputStream dest, int limit) {
+            this.dest = dest;
+            this.limit = limit;
+            this.copy = new ByteArrayOutputStream(Math.min(limit, 8192));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            dest.write(b);
+            if (copy != null) {
+                if (copy.size() < limit) {
+                    copy.write(b);
+                } else {
+                    copy = null;
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            dest.write(b, off, len);
+            if (copy != null) {
+                if (copy.size() + len <= limit) {
+                    copy.write(b, off, len);
+                } else {
+                    copy = null;
+                }
             }
         }
+
+        @Override
+        public void flush() throws IOException {
+            dest.flush();
+        }
+
+        /** @return null if the limit was exceeded */
+        byte[] getCapturedOpt() {
+            return copy == null ? null : copy.toByteArray();
+        }
     }
 
     private static String etag(String str) {
@@ -0,0 +1,213 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.index.StripedPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Creates gzip streams with a configurable compression level and buffer size. Optionally recycles Deflaters: closed
+ * streams reset their Deflater and hand it back to a striped pool, where the stripe is selected by the current thread.
+ * Deflaters that don't fit into the pool are ended immediately instead of waiting for finalization.
+ */
+public class GzipPool {
+    private static final Logger LOG = LoggerFactory.getLogger(GzipPool.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** null if recycling is disabled */
+    private final StripedPool<Deflater> pool;
+
+    private final int level;
+    private final int bufferSize;
+    private final LongAdder created;
+    private final LongAdder reused;
+
+    /** Uncompressed bytes of finished streams */
+    private final LongAdder bytesIn;
+
+    /** Compressed bytes of finished streams, including header and trailer */
+    private final LongAdder bytesOut;
+
+    /** Without recycling, level and buffer size like GZIPOutputStream */
+    public GzipPool() {
+        this(Deflater.DEFAULT_COMPRESSION, 512, 0);
+    }
+
+    /**
+     * @param level Deflater compression level, -1 for the default
+     * @param poolStripes number of pooled Deflaters, rounded up to a power of 2; 0 disables recycling
+     */
+    public GzipPool(int level, int bufferSize, int poolStripes) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("invalid buffer size: " + bufferSize);
+        }
+        this.level = level;
+        this.bufferSize = bufferSize;
+        this.pool = poolStripes > 0 ? new StripedPool<>(poolStripes) : null;
+        this.created = new LongAdder();
+        this.reused = new LongAdder();
+        this.bytesIn = new LongAdder();
+        this.bytesOut = new LongAdder();
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Created gzip pool, level " + level + ", buffer " + bufferSize + ", pool stripes: " + (pool == null ? 0 : pool.size()));
+        }
+    }
+
+    /** @return gzip stream that closes dest when closed */
+    public OutputStream open(OutputStream dest) throws IOException {
+        return new PooledGzipOutputStream(dest, borrow());
+    }
+
+    private Deflater borrow() {
+        Deflater result;
+
+        result = pool == null ? null : pool.borrow();
+        if (result == null) {
+            created.increment();
+            result = new Deflater(level, true);
+        } else {
+            reused.increment();
+        }
+        return result;
+    }
+
+    private void giveBack(Deflater deflater) {
+        if (pool != null) {
+            deflater.reset();
+            if (pool.giveBack(deflater)) {
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    /** @return number of pooled Deflaters, currently not in use */
+    public int getIdle() {
+        return pool == null ? 0 : pool.getIdle();
+    }
+
+    public int getStripes() {
+        return pool == null ? 0 : pool.size();
+    }
+
+    public long getCreated() {
+        return created.sum();
+    }
+
+    public long getReused() {
+        return reused.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /** @param reset true to start over after the snapshot */
+    public void snapshot(boolean reset, Map<String, Long> dest) {
+        dest.put("gzip.deflatersCreated", reset ? created.sumThenReset() : created.sum());
+        dest.put("gzip.deflatersReused", reset ? reused.sumThenReset() : reused.sum());
+        dest.put("gzip.bytesIn", reset ? bytesIn.sumThenReset() : bytesIn.sum());
+        dest.put("gzip.bytesOut", reset ? bytesOut.sumThenReset() : bytesOut.sum());
+    }
+
+    /** Same output as GZIPOutputStream, but the Deflater is handed back to the pool on close. */
+    private class PooledGzipOutputStream extends DeflaterOutputStream {
+        private final CRC32 crc;
+        private boolean finished;
+        private boolean closed;
+
+        PooledGzipOutputStream(OutputStream dest, Deflater deflater) throws IOException {
+            super(dest, deflater, bufferSize);
+            this.crc = new CRC32();
+            this.finished = false;
+            this.closed = false;
+            // magic, method deflate, no flags, no mtime, no extra flags, os unknown
+            dest.write(new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff });
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkOpen();
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkOpen();
+            super.flush();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            long value;
+            long total;
+
+            if (finished) {
+                return;
+            }
+            checkOpen();
+            super.finish();
+            finished = true;
+            value = crc.getValue();
+            total = def.getBytesRead();
+            out.write(new byte[] {
+                    (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                    (byte) total, (byte) (total >> 8), (byte) (total >> 16), (byte) (total >> 24) });
+            bytesIn.add(total);
+            bytesOut.add(def.getBytesWritten() + 18);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            try {
+                finish();
+                out.close();
+            } finally {
+                closed = true;
+                giveBack(def);
+                def = null;
+            }
+        }
+
+        /** The Deflater might already be in use by another stream */
+        private void checkOpen() throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with power-of-two buckets. Recording is a few striped additions without locks, so it can stay
+ * enabled permanently; percentiles are approximated by the upper bound of their bucket. Thread-safe.
+ */
+public class Histogram {
+    /** bucket i counts values v with 2^(i-1) <= v < 2^i; bucket 0 counts zeros and negative values */
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    public Histogram() {
+        buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets[Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        long result;
+
+        result = 0;
+        for (LongAdder bucket : buckets) {
+            result += bucket.sum();
+        }
+        return result;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Adds count, sum, max and percentiles to dest, with keys prefixed by name. Values recorded concurrently with
+     * a reset are either counted in this snapshot or in the next one, possibly partially.
+     *
+     * @param reset true to start over after the snapshot
+     */
+    public void snapshot(String name, boolean reset, Map<String, Long> dest) {
+        long[] counts;
+        long count;
+        long total;
+        long maximum;
+
+        counts = new long[BUCKETS];
+        count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = reset ? buckets[i].sumThenReset() : buckets[i].sum();
+            count += counts[i];
+        }
+        total = reset ? sum.sumThenReset() : sum.sum();
+        maximum = reset ? max.getThenReset() : max.get();
+        dest.put(name + ".count", count);
+        dest.put(name + ".sum", total);
+        dest.put(name + ".max", maximum);
+        dest.put(name + ".p50", percentile(counts, count, maximum, 50));
+        dest.put(name + ".p99", percentile(counts, count, maximum, 99));
+    }
+
+    private static long percentile(long[] counts, long count, long maximum, int percent) {
+        long rank;
+        long seen;
+
+        if (count == 0) {
+            return 0;
+        }
+        rank = (count * percent + 99) / 100;
+        seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : Math.min((1L << i) - 1, maximum);
+            }
+        }
+        return maximum;
+    }
+}
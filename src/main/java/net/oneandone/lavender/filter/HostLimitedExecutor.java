@@ -0,0 +1,203 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool for blocking fetches that runs at most a fixed number of tasks per host at a time. Tasks beyond
+ * the host limit wait in a per-host queue without occupying a thread, so a slow host does not starve the others.
+ * Tasks that have not started when the executor shuts down get their rejected callback instead. Thread-safe.
+ */
+public class HostLimitedExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(HostLimitedExecutor.class);
+
+    private final ThreadPoolExecutor pool;
+    private final int perHost;
+
+    /** Maximum number of tasks waiting for a host */
+    private final int maxWaiting;
+
+    private final ConcurrentHashMap<String, Host> hosts;
+
+    private volatile boolean shutdown;
+
+    /**
+     * @param threads maximum number of tasks running at the same time
+     * @param perHost maximum number of tasks running for the same host
+     * @param queue maximum number of tasks waiting for a thread, and maximum number of tasks waiting for a host
+     */
+    public HostLimitedExecutor(String name, int threads, int perHost, int queue) {
+        AtomicInteger count;
+
+        if (threads <= 0 || perHost <= 0 || queue <= 0) {
+            throw new IllegalArgumentException(threads + " " + perHost + " " + queue);
+        }
+        count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queue), r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pool.allowCoreThreadTimeOut(true);
+        this.perHost = perHost;
+        this.maxWaiting = queue;
+        this.hosts = new ConcurrentHashMap<>();
+        this.shutdown = false;
+    }
+
+    private static class Host {
+        private int running;
+        private final ArrayDeque<Job> waiting = new ArrayDeque<>();
+    }
+
+    private static class Job {
+        private final Runnable task;
+
+        /** Null to drop the task silently */
+        private final Runnable rejected;
+
+        Job(Runnable task, Runnable rejected) {
+            this.task = task;
+            this.rejected = rejected;
+        }
+    }
+
+    /** What the pool sees, so tasks that never started can be rejected on shutdown */
+    private class Slot implements Runnable {
+        private final Host host;
+        private final Job job;
+
+        Slot(Host host, Job job) {
+            this.host = host;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            HostLimitedExecutor.this.run(host, job);
+        }
+    }
+
+    /** @throws RejectedExecutionException if the queues are full or the executor is shut down */
+    public void execute(String hostname, Runnable task) {
+        execute(hostname, task, null);
+    }
+
+    /**
+     * @param rejected runs instead of task if the executor shuts down before task started; null to drop the task
+     * @throws RejectedExecutionException if the queues are full or the executor is shut down
+     */
+    public void execute(String hostname, Runnable task, Runnable rejected) {
+        Host host;
+        Job job;
+
+        host = hosts.computeIfAbsent(hostname, key -> new Host());
+        job = new Job(task, rejected);
+        synchronized (host) {
+            if (shutdown) {
+                throw new RejectedExecutionException("shut down");
+            }
+            if (host.running >= perHost) {
+                if (host.waiting.size() >= maxWaiting) {
+                    throw new RejectedExecutionException("too many requests waiting for " + hostname);
+                }
+                host.waiting.add(job);
+                return;
+            }
+            host.running++;
+        }
+        try {
+            pool.execute(new Slot(host, job));
+        } catch (RejectedExecutionException e) {
+            synchronized (host) {
+                host.running--;
+            }
+            throw e;
+        }
+    }
+
+    /** Runs the task and then the tasks waiting for the same host, keeping the slot */
+    private void run(Host host, Job job) {
+        Job next;
+
+        next = job;
+        while (next != null) {
+            try {
+                next.task.run();
+            } catch (RuntimeException e) {
+                LOG.error("fetch failed", e);
+            }
+            synchronized (host) {
+                // after shutdown, waiting tasks are rejected instead
+                next = shutdown ? null : host.waiting.poll();
+                if (next == null) {
+                    host.running--;
+                }
+            }
+        }
+    }
+
+    /** @return number of tasks running or waiting for the host */
+    public int getLoad(String hostname) {
+        Host host;
+
+        host = hosts.get(hostname);
+        if (host == null) {
+            return 0;
+        }
+        synchronized (host) {
+            return host.running + host.waiting.size();
+        }
+    }
+
+    /** Interrupts running tasks; tasks waiting for a thread or a host get their rejected callback in the current thread */
+    public void shutdown() {
+        List<Job> dropped;
+
+        shutdown = true;
+        dropped = new ArrayList<>();
+        for (Runnable slot : pool.shutdownNow()) {
+            dropped.add(((Slot) slot).job);
+        }
+        for (Host host : hosts.values()) {
+            synchronized (host) {
+                dropped.addAll(host.waiting);
+                host.waiting.clear();
+            }
+        }
+        for (Job job : dropped) {
+            if (job.rejected != null) {
+                try {
+                    job.rejected.run();
+                } catch (RuntimeException e) {
+                    LOG.error("reject failed", e);
+                }
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package net.oneandone.lavender.filter;
 
+import net.oneandone.lavender.filter.processor.RewriteCache;
 import net.oneandone.sushi.fs.ExistsException;
 import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.World;
@@ -36,6 +37,8 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -47,6 +50,8 @@ public class Lavender implements Filter, LavenderMBean {
     private static final Logger LOG = LoggerFactory.getLogger(Lavender.class);
 
     public static final String LAVENDER_IDX = "WEB-INF/lavender.idx";
+    /** Optional binary companion of LAVENDER_IDX, preferred by the production filter */
+    public static final String LAVENDER_IDX_BIN = "WEB-INF/lavender.idx.bin";
     public static final String LAVENDER_NODES = "WEB-INF/lavender.nodes";
 
     public static final String ALLOW_PROD_DEV_MIX_MODE = "lavender.allowProdDevMixMode";
@@ -162,22 +167,272 @@ public class Lavender implements Filter, LavenderMBean {
     }
 
     public int getModules() {
+        DevelopmentFilter filter = developmentFilterOpt();
+        return filter == null ? -1 : filter.getModulesCount();
+    }
+
+    /** @return null if there's no development filter */
+    private DevelopmentFilter developmentFilterOpt() {
         Filter filter = delegate.get();
         if (filter instanceof DevelopmentFilter) {
-            return ((DevelopmentFilter) filter).getModulesCount();
+            return (DevelopmentFilter) filter;
         } else if (filter instanceof FilterList) {
             for (Filter f : ((FilterList) filter).getFilters()) {
                 if (f instanceof DevelopmentFilter) {
-                    return ((DevelopmentFilter) f).getModulesCount();
+                    return (DevelopmentFilter) f;
                 }
             }
         }
-        return -1;
+        return null;
+    }
+
+    /** @return null if there's no production filter */
+    private ProductionFilter productionFilterOpt() {
+        Filter filter = delegate.get();
+        if (filter instanceof ProductionFilter) {
+            return (ProductionFilter) filter;
+        } else if (filter instanceof FilterList) {
+            for (Filter f : ((FilterList) filter).getFilters()) {
+                if (f instanceof ProductionFilter) {
+                    return (ProductionFilter) f;
+                }
+            }
+        }
+        return null;
+    }
+
+    private RewriteCache rewriteCacheOpt() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? null : filter.getRewriteCache();
+    }
+
+    @Override
+    public long getRewriteCacheHits() {
+        RewriteCache cache = rewriteCacheOpt();
+        return cache == null ? -1 : cache.getHits();
+    }
+
+    @Override
+    public long getRewriteCacheMisses() {
+        RewriteCache cache = rewriteCacheOpt();
+        return cache == null ? -1 : cache.getMisses();
+    }
+
+    @Override
+    public long getRewriteCacheEvictions() {
+        RewriteCache cache = rewriteCacheOpt();
+        return cache == null ? -1 : cache.getEvictions();
+    }
+
+    @Override
+    public int getRewriteCacheSize() {
+        RewriteCache cache = rewriteCacheOpt();
+        return cache == null ? -1 : cache.size();
+    }
+
+    private OutputCache cssCacheOpt() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? null : filter.getCssCache();
+    }
+
+    @Override
+    public long getCssCacheHits() {
+        OutputCache cache = cssCacheOpt();
+        return cache == null ? -1 : cache.getHits();
+    }
+
+    @Override
+    public long getCssCacheMisses() {
+        OutputCache cache = cssCacheOpt();
+        return cache == null ? -1 : cache.getMisses();
+    }
+
+    @Override
+    public long getCssCacheBytes() {
+        OutputCache cache = cssCacheOpt();
+        return cache == null ? -1 : cache.getBytes();
+    }
+
+    private GzipPool gzipPoolOpt() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? null : filter.getGzipPool();
+    }
+
+    @Override
+    public int getGzipPoolStripes() {
+        GzipPool pool = gzipPoolOpt();
+        return pool == null ? -1 : pool.getStripes();
+    }
+
+    @Override
+    public int getGzipPoolIdle() {
+        GzipPool pool = gzipPoolOpt();
+        return pool == null ? -1 : pool.getIdle();
+    }
+
+    @Override
+    public long getGzipDeflatersCreated() {
+        GzipPool pool = gzipPoolOpt();
+        return pool == null ? -1 : pool.getCreated();
+    }
+
+    @Override
+    public long getGzipDeflatersReused() {
+        GzipPool pool = gzipPoolOpt();
+        return pool == null ? -1 : pool.getReused();
+    }
+
+    @Override
+    public long getResponses() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? -1 : filter.getMetrics().getResponses();
+    }
+
+    @Override
+    public long getProcessedChars() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? -1 : filter.getMetrics().getProcessed();
+    }
+
+    @Override
+    public long getProcessorNanos() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? -1 : filter.getMetrics().getProcessorNanos();
+    }
+
+    @Override
+    public long getRewrites() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? -1 : filter.getRewriteEngine().getRewrites();
+    }
+
+    @Override
+    public long getIndexHits() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? -1 : filter.getRewriteEngine().getIndexHits();
+    }
+
+    @Override
+    public long getIndexMisses() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? -1 : filter.getRewriteEngine().getIndexMisses();
+    }
+
+    @Override
+    public long getGzipBytesIn() {
+        GzipPool pool = gzipPoolOpt();
+        return pool == null ? -1 : pool.getBytesIn();
+    }
+
+    @Override
+    public long getGzipBytesOut() {
+        GzipPool pool = gzipPoolOpt();
+        return pool == null ? -1 : pool.getBytesOut();
+    }
+
+    private ContentCache devCacheOpt() {
+        DevelopmentFilter filter = developmentFilterOpt();
+        return filter == null ? null : filter.getContentCache();
+    }
+
+    @Override
+    public long getDevCacheHits() {
+        ContentCache cache = devCacheOpt();
+        return cache == null ? -1 : cache.getHits();
+    }
+
+    @Override
+    public long getDevCacheMisses() {
+        ContentCache cache = devCacheOpt();
+        return cache == null ? -1 : cache.getMisses();
+    }
+
+    @Override
+    public double getDevCacheHitRatio() {
+        ContentCache cache = devCacheOpt();
+        return cache == null ? -1 : cache.getHitRatio();
+    }
+
+    @Override
+    public long getDevCacheBytes() {
+        ContentCache cache = devCacheOpt();
+        return cache == null ? -1 : cache.getBytes();
+    }
+
+    @Override
+    public long getDevCacheSpillBytes() {
+        ContentCache cache = devCacheOpt();
+        return cache == null ? -1 : cache.getSpillBytes();
+    }
+
+    @Override
+    public String[] snapshotMetrics() {
+        return metrics(false);
+    }
+
+    @Override
+    public String[] resetMetrics() {
+        return metrics(true);
+    }
+
+    private String[] metrics(boolean reset) {
+        ProductionFilter production;
+        DevelopmentFilter development;
+        Map<String, Long> all;
+        List<String> result;
+
+        production = productionFilterOpt();
+        development = developmentFilterOpt();
+        all = new TreeMap<>();
+        if (production != null) {
+            production.snapshot(reset, all);
+        }
+        if (development != null) {
+            development.snapshot(reset, all);
+        }
+        result = new ArrayList<>(all.size());
+        for (Map.Entry<String, Long> entry : all.entrySet()) {
+            result.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return result.toArray(new String[0]);
+    }
+
+    @Override
+    public int getIndexSize() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? -1 : filter.getIndexSize();
+    }
+
+    @Override
+    public long getIndexReloads() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? -1 : filter.getReloads();
+    }
+
+    @Override
+    public long getIndexReloadFailures() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? -1 : filter.getReloadFailures();
+    }
+
+    @Override
+    public long getIndexReloadMillis() {
+        ProductionFilter filter = productionFilterOpt();
+        return filter == null ? -1 : filter.getReloadMillis();
     }
 
     @Override
     public void reload() {
+        Filter current;
+
+        current = delegate.get();
         try {
+            if (current instanceof ProductionFilter && hasLavenderIndexFiles() && !isProdDevMode()) {
+                // still production only: hot swap, requests are not interrupted
+                ((ProductionFilter) current).reload();
+                return;
+            }
+            // mixed mode, or the filter type changes: re-create everything
             loadFilter();
         } catch (ServletException e) {
             LOG.error("Could not reload filter", e);
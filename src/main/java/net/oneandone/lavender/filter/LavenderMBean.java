@@ -18,5 +18,57 @@ package net.oneandone.lavender.filter;
 public interface LavenderMBean {
     boolean getProd();
     int getModules();
+
+    /**
+     * With a production filter, index and nodes are re-loaded in the background and swapped atomically; otherwise the
+     * filter is re-created.
+     */
     void reload();
+
+    /** -1 without production filter */
+    int getIndexSize();
+    long getIndexReloads();
+    long getIndexReloadFailures();
+    /** duration of the last successful index reload, -1 if there was none */
+    long getIndexReloadMillis();
+
+    /** -1 if the rewrite cache is disabled */
+    long getRewriteCacheHits();
+    long getRewriteCacheMisses();
+    long getRewriteCacheEvictions();
+    int getRewriteCacheSize();
+
+    /** -1 if the css cache is disabled */
+    long getCssCacheHits();
+    long getCssCacheMisses();
+    long getCssCacheBytes();
+
+    /** -1 without production filter */
+    int getGzipPoolStripes();
+    int getGzipPoolIdle();
+    long getGzipDeflatersCreated();
+    long getGzipDeflatersReused();
+
+    /** -1 without production filter */
+    long getResponses();
+    long getProcessedChars();
+    long getProcessorNanos();
+    long getRewrites();
+    long getIndexHits();
+    long getIndexMisses();
+    long getGzipBytesIn();
+    long getGzipBytesOut();
+
+    /** -1 without development filter or if its content cache is disabled */
+    long getDevCacheHits();
+    long getDevCacheMisses();
+    double getDevCacheHitRatio();
+    long getDevCacheBytes();
+    long getDevCacheSpillBytes();
+
+    /** @return all counters and histograms as sorted "name=value" lines */
+    String[] snapshotMetrics();
+
+    /** Same as snapshotMetrics, but starts over after the snapshot */
+    String[] resetMetrics();
 }
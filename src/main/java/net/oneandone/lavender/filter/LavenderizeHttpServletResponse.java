@@ -15,8 +15,11 @@
  */
 package net.oneandone.lavender.filter;
 
+import net.oneandone.lavender.filter.processor.AbstractProcessor;
 import net.oneandone.lavender.filter.processor.Processor;
 import net.oneandone.lavender.filter.processor.ProcessorFactory;
+import net.oneandone.lavender.index.Hex;
+import net.oneandone.lavender.index.Md5;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,17 +28,18 @@ import javax.activation.MimeTypeParseException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * An implementation of {@link HttpServletResponse} that uses a custom {@link ServletOutputStream} and
@@ -56,6 +60,11 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
     /** The context path. Always starts and ends with a "/" */
     protected final String contextPath;
 
+    /** Value of the If-None-Match request header, null if not specified */
+    protected final String ifNoneMatch;
+
+    protected final ResponseConfig config;
+
     /**
      * The headers. Also store them here for logging and testing - they're unavailable in the original
      * HttpServletResponseWrapper.
@@ -71,9 +80,18 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
     /** Null until initialize has been called, otherwise indicates if a there's processor */
     private Boolean processing;
 
+    /** The processor created by initialize; handed back to the factory on close */
+    private Processor processor;
+
     /** Null if not set */
     private Integer contentLength;
 
+    /** True if initialize found a stylesheet that is served from the css cache */
+    private boolean cached;
+
+    /** True if initialize decided to buffer the body */
+    private boolean buffered;
+
     /**
      * Initialized to true, if the client can receive gzip. Reset to false by initialize if the contentType is
      * not enabled for compression.
@@ -82,6 +100,12 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
 
     public LavenderizeHttpServletResponse(HttpServletResponse response, ProcessorFactory processorFactory,
                                           URI requestURI, String userAgent, String contextPath, boolean clientCanGzip) {
+        this(response, processorFactory, requestURI, userAgent, contextPath, clientCanGzip, null, ResponseConfig.DEFAULT);
+    }
+
+    public LavenderizeHttpServletResponse(HttpServletResponse response, ProcessorFactory processorFactory,
+                                          URI requestURI, String userAgent, String contextPath, boolean clientCanGzip,
+                                          String ifNoneMatch, ResponseConfig config) {
         super(response);
         if (!contextPath.startsWith("/")) {
             throw new IllegalArgumentException(contextPath);
@@ -93,7 +117,11 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
         this.requestURI = requestURI;
         this.userAgent = userAgent;
         this.contextPath = contextPath;
+        this.ifNoneMatch = ifNoneMatch;
+        this.config = config;
         this.processing = null;
+        this.cached = false;
+        this.buffered = false;
         this.contentLength = null;
         this.gzip = clientCanGzip;
     }
@@ -132,15 +160,18 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
 
                     encoding = defineCharacterEncoding();
                     processor = initialize();
+                    if (cached) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("getWriter() -> cached writer (gzip=" + gzip +")");
+                        }
+                        return cacheWriter(processor, encoding);
+                    }
                     if (gzip) {
                         if (LOG.isDebugEnabled()) {
                             LOG.debug("getWriter() -> gzipped original outputStream");
                         }
-                        target = new OutputStreamWriter(new GZIPOutputStream(LavenderizeHttpServletResponse.super.getOutputStream()),
-                                encoding);
-                    } else {
-                        target = LavenderizeHttpServletResponse.super.getWriter();
                     }
+                    target = target(encoding);
                     if (processor == null) {
                         if (LOG.isDebugEnabled()) {
                             LOG.debug("getWriter() -> original writer (gzip=" + gzip +")");
@@ -151,7 +182,7 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
                             LOG.debug("getWriter() -> lavendelized writer (gzip=" + gzip +")");
                         }
                         processor.setWriter(target);
-                        return new LavenderizeWriter(processor);
+                        return new LavenderizeWriter(processor, config.metrics);
                     }
                 }
             });
@@ -174,16 +205,23 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
                 protected OutputStream createTarget() throws IOException {
                     Processor processor;
                     String encoding;
+                    Charset charset;
                     OutputStream tmp;
 
                     processor = initialize();
                     if (processor == null) {
+                        if (buffered) {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("getOutputStream() -> buffered outputStream");
+                            }
+                            return new BufferedBody();
+                        }
                         tmp = LavenderizeHttpServletResponse.super.getOutputStream();
                         if (gzip) {
                             if (LOG.isDebugEnabled()) {
                                 LOG.debug("getOutputStream() -> original outputStream");
                             }
-                            tmp = new GZIPOutputStream(tmp);
+                            tmp = config.gzipPool.open(tmp);
                         } else {
                             if (LOG.isDebugEnabled()) {
                                 LOG.debug("getOutputStream() -> gzipped original outputStream");
@@ -193,22 +231,32 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
                         return tmp;
                     } else {
                         encoding = defineCharacterEncoding();
-                        if (gzip) {
+                        if (cached) {
                             if (LOG.isDebugEnabled()) {
-                                LOG.debug("getOutputStream() -> lavendelized gzipped original outputStream");
+                                LOG.debug("getOutputStream() -> cached writer (gzip=" + gzip + ")");
                             }
-                            processor.setWriter(new OutputStreamWriter(
-                                    new GZIPOutputStream(LavenderizeHttpServletResponse.super.getOutputStream()), encoding));
-                        } else {
+                            return WriterOutputStream.create(cacheWriter(processor, encoding), encoding);
+                        }
+                        charset = Charset.forName(encoding);
+                        if (AbstractProcessor.isAsciiCompatible(charset)) {
                             if (LOG.isDebugEnabled()) {
+                                LOG.debug("getOutputStream() -> lavendelized bytes (gzip=" + gzip + ", encoding=" + encoding + ")");
+                            }
+                            processor.setOutputStream(targetStream(), charset);
+                            return new LavenderizeOutputStream(processor, config.metrics);
+                        }
+                        if (LOG.isDebugEnabled()) {
+                            if (gzip) {
+                                LOG.debug("getOutputStream() -> lavendelized gzipped original outputStream");
+                            } else {
                                 LOG.debug("getOutputStream() -> lavendelized original writer");
                             }
-                            processor.setWriter(LavenderizeHttpServletResponse.super.getWriter());
                         }
+                        processor.setWriter(target(encoding));
                         if (LOG.isDebugEnabled()) {
                             LOG.debug("Created WriterOutputStream with encoding " + encoding);
                         }
-                        return WriterOutputStream.create(new LavenderizeWriter(processor), encoding);
+                        return WriterOutputStream.create(new LavenderizeWriter(processor, config.metrics), encoding);
                     }
                 }
             };
@@ -217,6 +265,202 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
         return outputStream;
     }
 
+    /** @return writer for processed content, gzipped if enabled */
+    private Writer target(String encoding) throws IOException {
+        if (buffered || gzip) {
+            return new OutputStreamWriter(targetStream(), encoding);
+        } else {
+            return super.getWriter();
+        }
+    }
+
+    /** @return stream for processed content, gzipped if enabled */
+    private OutputStream targetStream() throws IOException {
+        if (buffered) {
+            return new BufferedBody();
+        } else if (gzip) {
+            return config.gzipPool.open(super.getOutputStream());
+        } else {
+            return super.getOutputStream();
+        }
+    }
+
+    private Writer cacheWriter(Processor processor, String encoding) {
+        return new OutputCacheWriter(config.cssCache, requestURI + " " + contextPath + " " + encoding + " ", processor, encoding, config.metrics) {
+            @Override
+            protected Writer createTarget() throws IOException {
+                if (gzip) {
+                    setHeader("Content-Encoding", "gzip");
+                }
+                return target(encoding);
+            }
+
+            @Override
+            protected void deliver(OutputCache.Entry entry) throws IOException {
+                if (gzip && entry.length(false) < config.gzipMinSize) {
+                    gzip = false;
+                }
+                if (gzip) {
+                    setHeader("Content-Encoding", "gzip");
+                }
+                LavenderizeHttpServletResponse.super.setContentLength(entry.length(gzip));
+                try (OutputStream dest = LavenderizeHttpServletResponse.super.getOutputStream()) {
+                    entry.writeTo(dest, gzip);
+                }
+            }
+        };
+    }
+
+    /**
+     * Collects the body in a pooled buffer. Bodies that fit are sent on close with exact Content-Length and a strong ETag,
+     * or answered with 304 if the ETag matches If-None-Match. Larger bodies are streamed; flushing has no effect until then.
+     */
+    private class BufferedBody extends OutputStream {
+        private byte[] buffer;
+        private int length;
+
+        /** Null until the buffer overflows */
+        private OutputStream streaming;
+
+        private boolean closed;
+
+        BufferedBody() {
+            this.buffer = config.bufferPool.borrow();
+            this.length = 0;
+            this.streaming = null;
+            this.closed = false;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (streaming == null && length < buffer.length) {
+                buffer[length++] = (byte) b;
+            } else {
+                streaming().write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (streaming == null && length + len <= buffer.length) {
+                System.arraycopy(b, off, buffer, length, len);
+                length += len;
+            } else {
+                streaming().write(b, off, len);
+            }
+        }
+
+        private OutputStream streaming() throws IOException {
+            if (streaming == null) {
+                if (gzip) {
+                    setHeader("Content-Encoding", "gzip");
+                    streaming = config.gzipPool.open(LavenderizeHttpServletResponse.super.getOutputStream());
+                } else {
+                    streaming = LavenderizeHttpServletResponse.super.getOutputStream();
+                }
+                streaming.write(buffer, 0, length);
+                release();
+            }
+            return streaming;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (streaming != null) {
+                streaming.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (streaming != null) {
+                streaming.close();
+                return;
+            }
+            try {
+                send();
+            } finally {
+                release();
+            }
+        }
+
+        private void send() throws IOException {
+            String etag;
+            byte[] body;
+            int bodyLength;
+            ByteArrayOutputStream compressed;
+
+            if (gzip && length < config.gzipMinSize) {
+                gzip = false;
+            }
+            etag = headers.containsKey("ETag") ? null : etag(buffer, length, gzip);
+            if (gzip) {
+                setHeader("Content-Encoding", "gzip");
+                compressed = new ByteArrayOutputStream(length / 4 + 64);
+                try (OutputStream dest = config.gzipPool.open(compressed)) {
+                    dest.write(buffer, 0, length);
+                }
+                body = compressed.toByteArray();
+                bodyLength = body.length;
+            } else {
+                body = buffer;
+                bodyLength = length;
+            }
+            if (etag != null) {
+                setHeader("ETag", etag);
+                if (getStatus() == SC_OK && matches(ifNoneMatch, etag)) {
+                    setStatus(SC_NOT_MODIFIED);
+                    return;
+                }
+            }
+            LavenderizeHttpServletResponse.super.setContentLength(bodyLength);
+            try (OutputStream dest = LavenderizeHttpServletResponse.super.getOutputStream()) {
+                dest.write(body, 0, bodyLength);
+            }
+        }
+
+        private void release() {
+            if (buffer != null) {
+                config.bufferPool.giveBack(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    /** @return strong entity tag; gzipped and plain variants differ */
+    static String etag(byte[] body, int length, boolean gzip) {
+        return "\"" + Hex.encodeString(Md5.md5(body, 0, length)) + (gzip ? "-gzip" : "") + "\"";
+    }
+
+    /** Weak comparison as specified for If-None-Match */
+    static boolean matches(String ifNoneMatch, String etag) {
+        String tag;
+
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String item : ifNoneMatch.split(",")) {
+            tag = item.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      *  Explicitly set a proper character encoding - otherwise, we'd get one implicitly defined by getWriter()
      * (if system property "org.apache.catalina.STRICT_SERVLET_COMPLIANCE" if set to "true").
@@ -245,6 +489,10 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
         if (outputStream != null) {
             outputStream.close();
         }
+        if (processor != null) {
+            processorFactory.releaseProcessor(processor);
+            processor = null;
+        }
     }
 
     private static final List<String> GZIP_ENABLED = Arrays.asList("text/javascript", "text/css");
@@ -270,24 +518,35 @@ public class LavenderizeHttpServletResponse extends HttpServletResponseWrapper {
             mimeType = null;
         }
         if (contentType == null || mimeType == null) {
+            config.metrics.response(null);
             processor = null;
             gzip = false;
         } else {
             String baseType = mimeType.getBaseType();
             baseType = baseType.toLowerCase();
+            config.metrics.response(baseType);
             processor = processorFactory.createProcessor(baseType,  getBaseURI(), getContextPath());
             if (gzip) {
                 gzip = GZIP_ENABLED.contains(baseType);
             }
+            cached = processor != null && config.cssCache != null && "text/css".equals(baseType);
         }
+        this.processor = processor;
         processing = processor != null;
+        if (gzip) {
+            addHeader("Vary", "Accept-Encoding");
+            if (processor == null && contentLength != null && contentLength < config.gzipMinSize) {
+                gzip = false;
+            }
+        }
+        buffered = !cached && config.bufferPool != null && (processing || gzip);
         if (contentLength != null) {
             super.setContentLength(processing || gzip ? -1 : contentLength);
         }
-        if (gzip) {
+        if (gzip && !cached && !buffered) {
             // see http://cs193h.stevesouders.com and "High Performance Websites", by Steve Souders
+            // (cached and buffered bodies get the header when their size is known)
             setHeader("Content-Encoding", "gzip");
-            addHeader("Vary", "Accept-Encoding");
         }
         return processor;
     }
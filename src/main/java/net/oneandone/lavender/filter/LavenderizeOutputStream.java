@@ -0,0 +1,116 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.filter.processor.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+
+/**
+ * A {@link ServletOutputStream} that redirects bytes to a {@link Processor} in byte mode.
+ */
+public class LavenderizeOutputStream extends ServletOutputStream {
+    private static final Logger LOG = LoggerFactory.getLogger(LavenderizeOutputStream.class);
+
+    /** The content processor. */
+    private final Processor processor;
+
+    /** A byte array, used to process a single byte. */
+    private final byte[] single;
+
+    /** Null if not recorded */
+    private final Metrics metrics;
+
+    /** Bytes passed to the processor */
+    private long count;
+
+    /** Nanoseconds spent in the processor */
+    private long nanos;
+
+    private boolean closed;
+
+    /** @param metrics receives bytes and processing time on close, null to skip recording */
+    public LavenderizeOutputStream(Processor processor, Metrics metrics) {
+        this.processor = processor;
+        this.metrics = metrics;
+        this.single = new byte[1];
+        this.count = 0;
+        this.nanos = 0;
+        this.closed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long started;
+
+        if (closed) {
+            // the processor might already be recycled for another response
+            throw new IOException("stream closed");
+        }
+        started = System.nanoTime();
+        try {
+            processor.process(b, off, len);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error in LavenderizeOutputStream.write(byte[],int,int)", e);
+            throw e;
+        }
+        nanos += System.nanoTime() - started;
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            // nothing left to flush, and the processor might already serve another response
+            return;
+        }
+        try {
+            processor.flush();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error in LavenderizeOutputStream.flush()", e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        long started;
+
+        if (closed) {
+            return;
+        }
+        closed = true;
+        started = System.nanoTime();
+        try {
+            processor.close();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error in LavenderizeOutputStream.close()", e);
+            throw e;
+        }
+        if (metrics != null) {
+            metrics.processed(count, nanos + System.nanoTime() - started);
+        }
+    }
+}
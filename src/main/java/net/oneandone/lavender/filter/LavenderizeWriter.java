@@ -21,7 +21,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.nio.CharBuffer;
 
 /**
  * A {@link Writer} that redirects the character stream to the {@link Processor}.
@@ -33,13 +32,30 @@ public class LavenderizeWriter extends Writer {
     /** The content processor. */
     private final Processor processor;
 
+    /** Null if not recorded */
+    private final Metrics metrics;
+
+    /** Chars passed to the processor */
+    private long count;
+
+    /** Nanoseconds spent in the processor */
+    private long nanos;
+
     private boolean closed;
 
     /**
      * Instantiates a new lavendelize writer.
      */
     public LavenderizeWriter(Processor processor) {
+        this(processor, null);
+    }
+
+    /** @param metrics receives chars and processing time on close, null to skip recording */
+    public LavenderizeWriter(Processor processor, Metrics metrics) {
         this.processor = processor;
+        this.metrics = metrics;
+        this.count = 0;
+        this.nanos = 0;
         this.closed = false;
     }
 
@@ -48,12 +64,21 @@ public class LavenderizeWriter extends Writer {
      */
     @Override
     public void write(char[] cbuf, int off, int len) throws IOException {
+        long started;
+
+        if (closed) {
+            // the processor might already be recycled for another response
+            throw new IOException("writer closed");
+        }
+        started = System.nanoTime();
         try {
-            processor.process(CharBuffer.wrap(cbuf), off, len);
+            processor.process(cbuf, off, len);
         } catch (IOException | RuntimeException e) {
             LOG.error("Error in LavendelizeWriter.write(char[],int,int)", e);
             throw e;
         }
+        nanos += System.nanoTime() - started;
+        count += len;
     }
 
     /**
@@ -61,6 +86,10 @@ public class LavenderizeWriter extends Writer {
      */
     @Override
     public void flush() throws IOException {
+        if (closed) {
+            // nothing left to flush, and the processor might already serve another response
+            return;
+        }
         try {
             processor.flush();
         } catch (IOException | RuntimeException e) {
@@ -74,15 +103,21 @@ public class LavenderizeWriter extends Writer {
      */
     @Override
     public void close() throws IOException {
+        long started;
+
         if (closed) {
             return;
         }
         closed = true;
+        started = System.nanoTime();
         try {
             processor.close();
         } catch (IOException | RuntimeException e) {
             LOG.error("Error in LavendelizeWriter.close()", e);
             throw e;
         }
+        if (metrics != null) {
+            metrics.processed(count, nanos + System.nanoTime() - started);
+        }
     }
 }
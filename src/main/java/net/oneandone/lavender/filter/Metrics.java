@@ -0,0 +1,111 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters of a filter: responses per content type, processed content and time spent in processors, and
+ * resource fetch latency per module type. Recording costs striped additions, no locks and no allocation for known
+ * keys. Thread-safe.
+ */
+public class Metrics {
+    /** Bounds the number of keys if an application uses arbitrary content types */
+    private static final int MAX_KEYS = 32;
+
+    private static final String OTHER = "other";
+
+    private final ConcurrentHashMap<String, LongAdder> responses;
+
+    /** chars or bytes passed to processors */
+    private final LongAdder processed;
+
+    /** nanoseconds per response spent in processors */
+    private final Histogram processors;
+
+    /** nanoseconds per resource fetch, including sending it to the client, by module type */
+    private final ConcurrentHashMap<String, Histogram> fetches;
+
+    public Metrics() {
+        this.responses = new ConcurrentHashMap<>();
+        this.processed = new LongAdder();
+        this.processors = new Histogram();
+        this.fetches = new ConcurrentHashMap<>();
+    }
+
+    /** @param contentType base type in lower case, null if unknown */
+    public void response(String contentType) {
+        adder(responses, contentType == null ? "none" : contentType).increment();
+    }
+
+    /** @param count number of chars or bytes */
+    public void processed(long count, long nanos) {
+        processed.add(count);
+        processors.record(nanos);
+    }
+
+    public void fetched(String moduleType, long nanos) {
+        Histogram histogram;
+
+        histogram = fetches.get(moduleType);
+        if (histogram == null) {
+            histogram = fetches.computeIfAbsent(fetches.size() < MAX_KEYS ? moduleType : OTHER, key -> new Histogram());
+        }
+        histogram.record(nanos);
+    }
+
+    private static LongAdder adder(ConcurrentHashMap<String, LongAdder> map, String key) {
+        LongAdder result;
+
+        result = map.get(key);
+        if (result == null) {
+            result = map.computeIfAbsent(map.size() < MAX_KEYS ? key : OTHER, k -> new LongAdder());
+        }
+        return result;
+    }
+
+    public long getResponses() {
+        long result;
+
+        result = 0;
+        for (LongAdder adder : responses.values()) {
+            result += adder.sum();
+        }
+        return result;
+    }
+
+    public long getProcessed() {
+        return processed.sum();
+    }
+
+    public long getProcessorNanos() {
+        return processors.getSum();
+    }
+
+    /** @param reset true to start over after the snapshot */
+    public void snapshot(boolean reset, Map<String, Long> dest) {
+        for (Map.Entry<String, LongAdder> entry : responses.entrySet()) {
+            dest.put("responses." + entry.getKey(), reset ? entry.getValue().sumThenReset() : entry.getValue().sum());
+        }
+        dest.put("processed", reset ? processed.sumThenReset() : processed.sum());
+        processors.snapshot("processorNanos", reset, dest);
+        for (Map.Entry<String, Histogram> entry : fetches.entrySet()) {
+            entry.getValue().snapshot("fetchNanos." + entry.getKey(), reset, dest);
+        }
+    }
+}
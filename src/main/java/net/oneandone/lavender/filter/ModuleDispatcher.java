@@ -0,0 +1,144 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.modules.Module;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the modules whose resource path prefix is a prefix of a resource path. Built once from the modules of a
+ * webapp: a trie of prefix characters, where every node lists the modules with the prefix ending there. Lookup walks
+ * the path once and returns candidates in module order, i.e. the first-match-wins order of the module list is
+ * preserved. Immutable and thread-safe.
+ */
+public class ModuleDispatcher {
+    private static final Module[] NONE = new Module[0];
+
+    private static class Node {
+        /** Sorted */
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+
+        /** Indexes into modules, ascending */
+        private int[] here = new int[0];
+
+        Node child(char c) {
+            int idx;
+
+            idx = Arrays.binarySearch(keys, c);
+            return idx < 0 ? null : children[idx];
+        }
+
+        Node getOrCreate(char c) {
+            int idx;
+            Node result;
+
+            idx = Arrays.binarySearch(keys, c);
+            if (idx >= 0) {
+                return children[idx];
+            }
+            idx = -idx - 1;
+            result = new Node();
+            keys = insert(keys, idx, c);
+            children = insert(children, idx, result);
+            return result;
+        }
+
+        private static char[] insert(char[] array, int idx, char c) {
+            char[] result = new char[array.length + 1];
+
+            System.arraycopy(array, 0, result, 0, idx);
+            result[idx] = c;
+            System.arraycopy(array, idx, result, idx + 1, array.length - idx);
+            return result;
+        }
+
+        private static Node[] insert(Node[] array, int idx, Node node) {
+            Node[] result = new Node[array.length + 1];
+
+            System.arraycopy(array, 0, result, 0, idx);
+            result[idx] = node;
+            System.arraycopy(array, idx, result, idx + 1, array.length - idx);
+            return result;
+        }
+    }
+
+    private final Module[] modules;
+    private final Node root;
+
+    public ModuleDispatcher(List<Module> modules) {
+        Node node;
+        String prefix;
+
+        this.modules = modules.toArray(new Module[0]);
+        this.root = new Node();
+        for (int i = 0; i < this.modules.length; i++) {
+            prefix = this.modules[i].getResourcePathPrefix();
+            node = root;
+            for (int j = 0; j < prefix.length(); j++) {
+                node = node.getOrCreate(prefix.charAt(j));
+            }
+            node.here = Arrays.copyOf(node.here, node.here.length + 1);
+            node.here[node.here.length - 1] = i;
+        }
+    }
+
+    /** @return modules whose prefix matches resourcePath, in module order; the module filters are not checked */
+    public Module[] candidates(String resourcePath) {
+        int[] found;
+        int count;
+        boolean merged;
+        Node node;
+        Module[] result;
+
+        found = null;
+        count = 0;
+        merged = false;
+        node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.here.length > 0) {
+                if (found == null) {
+                    found = node.here;
+                    count = found.length;
+                } else {
+                    found = Arrays.copyOf(found, count + node.here.length);
+                    System.arraycopy(node.here, 0, found, count, node.here.length);
+                    count = found.length;
+                    merged = true;
+                }
+            }
+            node = i < resourcePath.length() ? node.child(resourcePath.charAt(i)) : null;
+        }
+        if (found == null) {
+            return NONE;
+        }
+        if (merged) {
+            // several nodes contributed; restore module order
+            Arrays.sort(found, 0, count);
+        }
+        result = new Module[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = modules[found[i]];
+        }
+        return result;
+    }
+
+    public int size() {
+        return modules.length;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.modules.Module;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Re-scans module entries in the background, so requests keep using the last good entries instead of scanning
+ * themselves (stale-while-revalidate). Each module is re-scanned after its interval if it was used since its last
+ * scan; modules that were never scanned are left alone. After a failed scan, the interval doubles up to MAX_BACKOFF.
+ * Thread-safe.
+ */
+public class ModuleRefresher {
+    private static final Logger LOG = LoggerFactory.getLogger(ModuleRefresher.class);
+
+    static final long MAX_BACKOFF = 10 * 60 * 1000;
+
+    /** Minimum milliseconds between scans triggered by refreshSoon */
+    static final long MIN_SOON = 1000;
+
+    /** Module type of a module class, e.g. "bitbucket" for BitbucketModule; anonymous classes have the type of their superclass */
+    private static final ClassValue<String> MODULE_TYPES = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            String name;
+
+            while (type.isAnonymousClass()) {
+                type = type.getSuperclass();
+            }
+            name = type.getSimpleName();
+            if (name.endsWith("Module") && name.length() > 6) {
+                name = name.substring(0, name.length() - 6);
+            }
+            return name.toLowerCase();
+        }
+    };
+
+    public static String type(Module<?> module) {
+        return MODULE_TYPES.get(module.getClass());
+    }
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /** Not modified after construction */
+    private final Map<Module<?>, State> states;
+
+    private final LongAdder refreshes;
+    private final LongAdder failures;
+
+    /**
+     * @param intervals milliseconds between scans of a module, 0 or negative to never refresh the module
+     * @param threads maximum number of modules scanned at the same time
+     */
+    public ModuleRefresher(List<Module> modules, ToLongFunction<Module<?>> intervals, int threads) {
+        AtomicInteger count;
+        long interval;
+
+        count = new AtomicInteger();
+        this.scheduler = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread thread = new Thread(r, "lavender-refresh-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.states = new IdentityHashMap<>();
+        for (Module module : modules) {
+            interval = intervals.applyAsLong(module);
+            if (interval > 0) {
+                states.put(module, new State(module, interval));
+            }
+        }
+        this.refreshes = new LongAdder();
+        this.failures = new LongAdder();
+    }
+
+    private class State {
+        private final Module<?> module;
+        private final long interval;
+
+        /** Set by requests, cleared by scans */
+        private volatile boolean used;
+
+        /** Guarded by this */
+        private int failures;
+        /** Guarded by this; scheduled refreshes with another generation are superseded and do nothing */
+        private long generation;
+        /** Guarded by this; true while an immediate refresh is pending */
+        private boolean soon;
+        /** Guarded by this */
+        private ScheduledFuture<?> next;
+
+        State(Module<?> module, long interval) {
+            this.module = module;
+            this.interval = interval;
+        }
+
+        /** Caller synchronizes */
+        void schedule(long delay) {
+            long current;
+
+            current = ++generation;
+            try {
+                next = scheduler.schedule(() -> refresh(current), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down
+                next = null;
+            }
+        }
+
+        long delay() {
+            return Math.min(interval << Math.min(failures, 20), Math.max(interval, MAX_BACKOFF));
+        }
+
+        void refresh(long current) {
+            boolean ok;
+
+            synchronized (this) {
+                if (current != generation) {
+                    return;
+                }
+                soon = false;
+            }
+            ok = true;
+            if (used && module.loadedEntries() != null) {
+                used = false;
+                try {
+                    module.refreshEntries();
+                    refreshes.increment();
+                } catch (IOException | RuntimeException e) {
+                    ok = false;
+                    used = true; // retry after backoff
+                    ModuleRefresher.this.failures.increment();
+                    LOG.warn(module.getName() + ": refresh failed, keeping previous entries: " + e.getMessage(), e);
+                }
+            }
+            synchronized (this) {
+                if (current != generation) {
+                    // refreshSoon scheduled another refresh in the meantime
+                    return;
+                }
+                failures = ok ? 0 : failures + 1;
+                schedule(delay());
+            }
+        }
+    }
+
+    public void start() {
+        for (State state : states.values()) {
+            synchronized (state) {
+                state.schedule(state.interval);
+            }
+        }
+    }
+
+    /** Marks the module to be re-scanned when its interval expires. Cheap, called for every request */
+    public void used(Module<?> module) {
+        State state;
+
+        state = states.get(module);
+        if (state != null && !state.used) {
+            state.used = true;
+        }
+    }
+
+    /**
+     * Schedules an immediate scan, e.g. because a resource was not found. Does nothing if an immediate scan is pending,
+     * if the last scan is less than MIN_SOON ago or if the module backs off after failures.
+     *
+     * @return false if the module is not refreshed in the background
+     */
+    public boolean refreshSoon(Module<?> module) {
+        State state;
+
+        state = states.get(module);
+        if (state == null) {
+            return false;
+        }
+        state.used = true;
+        synchronized (state) {
+            if (!state.soon && state.failures == 0 && state.next != null
+                    && System.currentTimeMillis() - state.module.getLastScan() >= MIN_SOON) {
+                state.next.cancel(false);
+                state.soon = true;
+                state.schedule(0);
+            }
+        }
+        return true;
+    }
+
+    public boolean isRefreshed(Module<?> module) {
+        return states.containsKey(module);
+    }
+
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /** @param reset true to start over after the snapshot */
+    public void snapshot(boolean reset, Map<String, Long> dest) {
+        dest.put("devRefresh.count", reset ? refreshes.sumThenReset() : refreshes.sum());
+        dest.put("devRefresh.failures", reset ? failures.sumThenReset() : failures.sum());
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte-bounded LRU cache for lavenderized response bodies. Every entry holds the plain and the gzipped body,
+ * optionally in direct buffers outside the heap. Keys are built by the caller; they have to cover everything
+ * the body depends on. Thread-safe.
+ */
+public class OutputCache {
+    private final long maxBytes;
+    private final boolean offHeap;
+    private final GzipPool gzipPool;
+    private final LinkedHashMap<String, Entry> map;
+    private long bytes;
+    private LongAdder hits;
+    private LongAdder misses;
+    private LongAdder evictions;
+
+    public OutputCache(long maxBytes, boolean offHeap) {
+        this(maxBytes, offHeap, new GzipPool());
+    }
+
+    public OutputCache(long maxBytes, boolean offHeap, GzipPool gzipPool) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("" + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+        this.gzipPool = gzipPool;
+        this.map = new LinkedHashMap<>(16, 0.75f, true);
+        this.bytes = 0;
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    /** Bodies are only cached if plain and gzipped form together take at most this number of bytes. */
+    public int getMaxEntrySize() {
+        return (int) Math.min(Integer.MAX_VALUE, maxBytes / 4);
+    }
+
+    /** @return null if not found */
+    public Entry lookup(String key) {
+        Entry result;
+
+        synchronized (map) {
+            result = map.get(key);
+        }
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    /** @return the new entry; it is not cached if it exceeds the maximum entry size */
+    public Entry put(String key, byte[] plain) throws IOException {
+        Entry entry;
+        Entry prev;
+        Iterator<Entry> iter;
+
+        entry = new Entry(buffer(plain), buffer(gzip(plain)));
+        if (entry.size() > getMaxEntrySize()) {
+            return entry;
+        }
+        synchronized (map) {
+            prev = map.put(key, entry);
+            if (prev != null) {
+                bytes -= prev.size();
+            }
+            bytes += entry.size();
+            iter = map.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= iter.next().size();
+                iter.remove();
+                evictions.increment();
+            }
+        }
+        return entry;
+    }
+
+    private ByteBuffer buffer(byte[] body) {
+        ByteBuffer result;
+
+        if (offHeap) {
+            result = ByteBuffer.allocateDirect(body.length);
+            result.put(body);
+            result.flip();
+            return result;
+        } else {
+            return ByteBuffer.wrap(body);
+        }
+    }
+
+    private byte[] gzip(byte[] plain) throws IOException {
+        ByteArrayOutputStream result;
+
+        result = new ByteArrayOutputStream(plain.length / 4 + 64);
+        try (OutputStream dest = gzipPool.open(result)) {
+            dest.write(plain);
+        }
+        return result.toByteArray();
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+            bytes = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    public long getBytes() {
+        synchronized (map) {
+            return bytes;
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** Continues counting where the previous cache stopped; call before this cache is published to other threads. */
+    public void inheritCounters(OutputCache previous) {
+        hits = previous.hits;
+        misses = previous.misses;
+        evictions = previous.evictions;
+    }
+
+    /** Immutable body in plain and gzipped form. */
+    public static class Entry {
+        private final ByteBuffer plain;
+        private final ByteBuffer gzipped;
+
+        private Entry(ByteBuffer plain, ByteBuffer gzipped) {
+            this.plain = plain;
+            this.gzipped = gzipped;
+        }
+
+        public int size() {
+            return plain.remaining() + gzipped.remaining();
+        }
+
+        public int length(boolean gzip) {
+            return (gzip ? gzipped : plain).remaining();
+        }
+
+        /** dest will not be closed */
+        public void writeTo(OutputStream dest, boolean gzip) throws IOException {
+            ByteBuffer body;
+
+            body = gzip ? gzipped : plain;
+            if (body.hasArray()) {
+                dest.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+            } else {
+                Channels.newChannel(dest).write(body.duplicate());
+            }
+        }
+    }
+}
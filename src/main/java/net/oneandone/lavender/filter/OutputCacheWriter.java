@@ -0,0 +1,150 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.filter.processor.Processor;
+import net.oneandone.lavender.index.Hex;
+import net.oneandone.lavender.index.Md5;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Buffers the upstream body of a response and looks up the lavenderized result in an OutputCache, keyed by
+ * a prefix and the md5 of the body. Bodies exceeding the cache's entry size are streamed through the processor
+ * as usual. Flushing has no effect until the body is known.
+ */
+public abstract class OutputCacheWriter extends Writer {
+    private final OutputCache cache;
+    private final String keyPrefix;
+    private final Processor processor;
+    private final String encoding;
+    private final Metrics metrics;
+    private final int limit;
+    private char[] buffer;
+    private int length;
+
+    /** Null until the limit is exceeded */
+    private Writer streaming;
+
+    private boolean closed;
+
+    /** @param metrics receives processed chars and time, null to skip recording */
+    public OutputCacheWriter(OutputCache cache, String keyPrefix, Processor processor, String encoding, Metrics metrics) {
+        this.cache = cache;
+        this.keyPrefix = keyPrefix;
+        this.processor = processor;
+        this.encoding = encoding;
+        this.metrics = metrics;
+        this.limit = cache.getMaxEntrySize();
+        this.buffer = new char[Math.min(8192, limit)];
+        this.length = 0;
+        this.streaming = null;
+        this.closed = false;
+    }
+
+    /** @return writer for the processor output, used when the body is too large to be cached */
+    protected abstract Writer createTarget() throws IOException;
+
+    /** Sends the body to the client */
+    protected abstract void deliver(OutputCache.Entry entry) throws IOException;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("writer closed");
+        }
+        if (streaming == null) {
+            if (length + len <= limit) {
+                if (length + len > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.min(limit, Math.max(length + len, buffer.length * 2)));
+                }
+                System.arraycopy(cbuf, off, buffer, length, len);
+                length += len;
+                return;
+            }
+            processor.setWriter(createTarget());
+            streaming = new LavenderizeWriter(processor, metrics);
+            streaming.write(buffer, 0, length);
+            buffer = null;
+        }
+        streaming.write(cbuf, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (streaming != null) {
+            streaming.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        String key;
+        OutputCache.Entry entry;
+        StringWriter dest;
+        Writer processing;
+
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (streaming != null) {
+            streaming.close();
+            return;
+        }
+        key = keyPrefix + Hex.encodeString(md5(buffer, length));
+        entry = cache.lookup(key);
+        if (entry == null) {
+            dest = new StringWriter(length + length / 8);
+            processor.setWriter(dest);
+            processing = new LavenderizeWriter(processor, metrics);
+            processing.write(buffer, 0, length);
+            processing.close();
+            entry = cache.put(key, dest.toString().getBytes(encoding));
+        }
+        buffer = null;
+        deliver(entry);
+    }
+
+    private static byte[] md5(char[] chars, int length) {
+        Md5 digest;
+        byte[] bytes;
+        int count;
+        char c;
+
+        digest = Md5.borrow();
+        try {
+            bytes = new byte[1024];
+            count = 0;
+            for (int i = 0; i < length; i++) {
+                c = chars[i];
+                bytes[count++] = (byte) (c >>> 8);
+                bytes[count++] = (byte) c;
+                if (count == bytes.length) {
+                    digest.update(bytes, 0, count);
+                    count = 0;
+                }
+            }
+            digest.update(bytes, 0, count);
+            return digest.finish();
+        } finally {
+            Md5.giveBack(digest);
+        }
+    }
+}
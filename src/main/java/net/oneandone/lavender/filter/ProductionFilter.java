@@ -17,10 +17,14 @@ package net.oneandone.lavender.filter;
 
 import net.oneandone.lavender.filter.processor.LavenderProcessorFactory;
 import net.oneandone.lavender.filter.processor.LavenderRewriteEngine;
-import net.oneandone.lavender.filter.processor.RewriteEngine;
+import net.oneandone.lavender.filter.processor.RewriteCache;
 import net.oneandone.lavender.index.Index;
+import net.oneandone.lavender.index.MappedIndex;
+import net.oneandone.lavender.index.ReadOnlyIndex;
+import net.oneandone.lavender.index.StripedPool;
 import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,8 +38,22 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 /**
  * Created by awiegant on 04.03.16.
@@ -43,7 +61,69 @@ import java.util.Map;
 public class ProductionFilter implements Filter {
     private static final Logger LOG = LoggerFactory.getLogger(ProductionFilter.class);
 
-    private LavenderProcessorFactory processorFactory;
+    /** Init parameter: number of pooled processors per content type; 0 disables recycling */
+    public static final String PROCESSOR_POOL = "processorPool";
+
+    /** Init parameter: maximum number of references in the rewrite cache; 0 disables the cache */
+    public static final String REWRITE_CACHE = "rewriteCache";
+
+    /** Init parameter: maximum number of bytes in the cache for lavenderized stylesheets; 0 disables the cache */
+    public static final String CSS_CACHE = "cssCache";
+
+    /** Init parameter: true to keep cached stylesheets in direct buffers outside the heap */
+    public static final String CSS_CACHE_OFF_HEAP = "cssCacheOffHeap";
+
+    /** Init parameter: gzip compression level, 1 (fastest) to 9 (best); default is -1, i.e. the zlib default */
+    public static final String GZIP_LEVEL = "gzipLevel";
+
+    /** Init parameter: size of the gzip output buffer in bytes */
+    public static final String GZIP_BUFFER = "gzipBuffer";
+
+    /** Init parameter: number of pooled Deflaters; 0 disables pooling */
+    public static final String GZIP_POOL = "gzipPool";
+
+    /** Init parameter: bodies with a known size below this number of bytes are not compressed */
+    public static final String GZIP_MIN_SIZE = "gzipMinSize";
+
+    /** Init parameter: maximum size of bodies sent with Content-Length and ETag; 0 disables buffering */
+    public static final String RESPONSE_BUFFER = "responseBuffer";
+
+    /** Init parameter: true to reload index and nodes in the background when the files in WEB-INF change */
+    public static final String INDEX_WATCH = "indexWatch";
+
+    private static final List<String> INDEX_FILES = Arrays.asList("lavender.idx", "lavender.idx.bin", "lavender.nodes");
+
+    private Node webapp;
+
+    private int rewriteCacheSize;
+
+    private int processorPoolStripes;
+
+    private int cssCacheSize;
+
+    private boolean cssCacheOffHeap;
+
+    /** Replaced atomically by reloads; every request reads it once and keeps it until it is done */
+    private volatile Snapshot snapshot;
+
+    /** Without css cache; every snapshot adds its own */
+    private ResponseConfig responseConfig;
+
+    private final Metrics metrics = new Metrics();
+
+    /** Builds new snapshots; null until init */
+    private ExecutorService reloader;
+
+    /** True while a reload is scheduled but not yet started */
+    private final AtomicBoolean reloadPending = new AtomicBoolean();
+
+    /** Null if index files are not watched */
+    private WatchService watcher;
+
+    /** Written by the reloader thread only */
+    private volatile long reloads;
+    private volatile long reloadFailures;
+    private volatile long reloadMillis = -1;
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
@@ -55,26 +135,210 @@ public class ProductionFilter implements Filter {
             e.printStackTrace();
             throw new ServletException("Could not initialize Lavender production filter", e);
         }
-        Node webapp = world.file(filterConfig.getServletContext().getRealPath(""));
-
-        Node indexSource = webapp.join(Lavender.LAVENDER_IDX);
-        Node nodesSource = webapp.join(Lavender.LAVENDER_NODES);
+        webapp = world.file(filterConfig.getServletContext().getRealPath(""));
+        rewriteCacheSize = intParameter(filterConfig, REWRITE_CACHE, 0);
+        processorPoolStripes = intParameter(filterConfig, PROCESSOR_POOL, StripedPool.defaultPoolStripes());
+        cssCacheSize = intParameter(filterConfig, CSS_CACHE, 0);
+        cssCacheOffHeap = Boolean.parseBoolean(filterConfig.getInitParameter(CSS_CACHE_OFF_HEAP));
         try {
-            Index index = Index.load(indexSource);
-            RewriteEngine rewriteEngine = LavenderRewriteEngine.load(index, nodesSource);
-            processorFactory = new LavenderProcessorFactory(rewriteEngine);
+            responseConfig = responseConfig(filterConfig, metrics);
+            snapshot = load(null);
             LOG.info("Lavender prod filter");
         } catch (IOException e) {
             e.printStackTrace();
             throw new ServletException("Could not initialize Lavender production filter", e);
         }
+        reloader = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "lavender-index-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (Boolean.parseBoolean(filterConfig.getInitParameter(INDEX_WATCH))) {
+            watch();
+        }
+    }
 
+    /** Index, rewrite engine, processors and css cache of one version of the index files. Immutable. */
+    private static final class Snapshot {
+        final LavenderRewriteEngine rewriteEngine;
+        final LavenderProcessorFactory processorFactory;
+        final ResponseConfig responseConfig;
+        final int indexSize;
+
+        Snapshot(LavenderRewriteEngine rewriteEngine, LavenderProcessorFactory processorFactory,
+                 ResponseConfig responseConfig, int indexSize) {
+            this.rewriteEngine = rewriteEngine;
+            this.processorFactory = processorFactory;
+            this.responseConfig = responseConfig;
+            this.indexSize = indexSize;
+        }
+    }
+
+    /** @param previous null for the initial load, otherwise its counters are continued */
+    private Snapshot load(Snapshot previous) throws IOException {
+        ReadOnlyIndex index;
+        LavenderRewriteEngine engine;
+        OutputCache cssCache;
+
+        index = loadIndex(webapp);
+        engine = LavenderRewriteEngine.load(index, webapp.join(Lavender.LAVENDER_NODES));
+        if (rewriteCacheSize > 0) {
+            // results depend on the index, so the cache starts empty
+            engine.setCache(new RewriteCache(rewriteCacheSize));
+        }
+        if (previous != null) {
+            engine.inheritCounters(previous.rewriteEngine);
+        }
+        if (cssCacheSize > 0) {
+            // cached stylesheets contain rewritten urls, and the key doesn't cover the index, so start empty as well
+            cssCache = new OutputCache(cssCacheSize, cssCacheOffHeap, responseConfig.gzipPool);
+            if (previous != null) {
+                cssCache.inheritCounters(previous.responseConfig.cssCache);
+            }
+        } else {
+            cssCache = null;
+        }
+        return new Snapshot(engine, new LavenderProcessorFactory(engine, processorPoolStripes),
+                new ResponseConfig(cssCache, responseConfig.gzipPool, responseConfig.bufferPool, responseConfig.gzipMinSize, metrics),
+                index.size());
+    }
+
+    /**
+     * Schedules loading index and nodes in the background; the result is published atomically. Requests keep using
+     * the current snapshot until then, requests in progress finish with it. Does nothing if a reload is already pending.
+     */
+    public void reload() {
+        if (reloadPending.compareAndSet(false, true)) {
+            try {
+                reloader.execute(this::reloadNow);
+            } catch (RejectedExecutionException e) {
+                reloadPending.set(false);
+                LOG.warn("reload rejected: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Loads and publishes a new snapshot in the current thread; keeps the current snapshot if loading fails */
+    public void reloadNow() {
+        long started;
+        Snapshot next;
+
+        reloadPending.set(false);
+        started = System.nanoTime();
+        try {
+            next = load(snapshot);
+        } catch (IOException | RuntimeException e) {
+            reloadFailures++;
+            LOG.error("Could not reload lavender index, keeping the current one", e);
+            return;
+        }
+        snapshot = next;
+        reloadMillis = (System.nanoTime() - started) / 1000000;
+        reloads++;
+        LOG.info("Reloaded lavender index: " + next.indexSize + " entries in " + reloadMillis + " ms");
+    }
+
+    /** Reloads when index or nodes files in WEB-INF change; file modifications are coalesced for a short delay. */
+    private void watch() throws ServletException {
+        Node dir;
+        Thread thread;
+
+        dir = webapp.join("WEB-INF");
+        if (!(dir instanceof FileNode)) {
+            LOG.warn("cannot watch " + dir + ": not a file system");
+            return;
+        }
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            ((FileNode) dir).toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            throw new ServletException("Could not watch " + dir, e);
+        }
+        thread = new Thread(this::watchLoop, "lavender-index-watch");
+        thread.setDaemon(true);
+        thread.start();
+        LOG.info("watching " + dir + " for index changes");
+    }
+
+    private void watchLoop() {
+        WatchKey key;
+        boolean changed;
+
+        try {
+            while (true) {
+                key = watcher.take();
+                changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || INDEX_FILES.contains(event.context().toString())) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                    // deployments write several files; wait until they're quiet
+                    key = watcher.poll(500, TimeUnit.MILLISECONDS);
+                } while (key != null);
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // destroyed
+        }
+    }
+
+    /** Prefers the memory mapped binary index, falls back to the text index for wars without it */
+    private static ReadOnlyIndex loadIndex(Node webapp) throws IOException {
+        Node binary;
+
+        binary = webapp.join(Lavender.LAVENDER_IDX_BIN);
+        if (binary instanceof FileNode && binary.exists()) {
+            LOG.info("loading binary index " + binary);
+            return MappedIndex.open(((FileNode) binary).toPath());
+        }
+        return Index.load(webapp.join(Lavender.LAVENDER_IDX)).freeze();
+    }
+
+    private static ResponseConfig responseConfig(FilterConfig filterConfig, Metrics metrics) throws ServletException {
+        GzipPool gzipPool;
+        int bufferSize;
+        BufferPool bufferPool;
+
+        try {
+            gzipPool = new GzipPool(intParameter(filterConfig, GZIP_LEVEL, Deflater.DEFAULT_COMPRESSION),
+                    intParameter(filterConfig, GZIP_BUFFER, GzipPool.DEFAULT_BUFFER_SIZE),
+                    intParameter(filterConfig, GZIP_POOL, StripedPool.defaultPoolStripes()));
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(e.getMessage(), e);
+        }
+        bufferSize = intParameter(filterConfig, RESPONSE_BUFFER, 0);
+        if (bufferSize > 0) {
+            bufferPool = new BufferPool(bufferSize, StripedPool.defaultPoolStripes());
+        } else {
+            bufferPool = null;
+        }
+        return new ResponseConfig(null, gzipPool, bufferPool, intParameter(filterConfig, GZIP_MIN_SIZE, 0), metrics);
+    }
+
+    static int intParameter(FilterConfig filterConfig, String name, int dflt) throws ServletException {
+        String value;
+
+        value = filterConfig.getInitParameter(name);
+        if (value == null) {
+            return dflt;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException("invalid init parameter " + name + ": " + value, e);
+        }
     }
 
     @Override
     public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse,
             FilterChain chain) throws IOException, ServletException {
         StringBuffer url;
+        Snapshot current;
         LavenderizeHttpServletRequest lavenderRequest;
         LavenderizeHttpServletResponse lavenderResponse;
 
@@ -87,8 +351,10 @@ public class ProductionFilter implements Filter {
 
             // use custom request and response objects
             lavenderRequest = new LavenderizeHttpServletRequest(request);
-            lavenderResponse = new LavenderizeHttpServletResponse(response, processorFactory,
-                    requestURI, request.getHeader("User-Agent"), request.getContextPath() + "/", Gzip.canGzip(request));
+            current = snapshot;
+            lavenderResponse = new LavenderizeHttpServletResponse(response, current.processorFactory,
+                    requestURI, request.getHeader("User-Agent"), request.getContextPath() + "/", Gzip.canGzip(request),
+                    request.getHeader("If-None-Match"), current.responseConfig);
             logRequest(url, request);
         } catch (RuntimeException re) {
             LOG.error("Error in Lavendelizer.doFilter()", re);
@@ -110,9 +376,71 @@ public class ProductionFilter implements Filter {
         }
     }
 
+    /** @return null if disabled */
+    public RewriteCache getRewriteCache() {
+        return snapshot.rewriteEngine.getCache();
+    }
+
+    public GzipPool getGzipPool() {
+        return responseConfig.gzipPool;
+    }
+
+    /** @return null if disabled */
+    public OutputCache getCssCache() {
+        return snapshot.responseConfig.cssCache;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public LavenderRewriteEngine getRewriteEngine() {
+        return snapshot.rewriteEngine;
+    }
+
+    public int getIndexSize() {
+        return snapshot.indexSize;
+    }
+
+    public long getReloads() {
+        return reloads;
+    }
+
+    public long getReloadFailures() {
+        return reloadFailures;
+    }
+
+    /** @return duration of the last successful reload, -1 if there was none */
+    public long getReloadMillis() {
+        return reloadMillis;
+    }
+
+    /**
+     * Adds response, processor, rewrite and gzip counters to dest.
+     * @param reset true to start over after the snapshot
+     */
+    public void snapshot(boolean reset, Map<String, Long> dest) {
+        metrics.snapshot(reset, dest);
+        snapshot.rewriteEngine.snapshot(reset, dest);
+        responseConfig.gzipPool.snapshot(reset, dest);
+        dest.put("index.size", (long) snapshot.indexSize);
+        dest.put("index.reloads", reloads);
+        dest.put("index.reloadFailures", reloadFailures);
+        dest.put("index.reloadMillis", reloadMillis);
+    }
+
     @Override
     public void destroy() {
-
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                LOG.warn("cannot close watcher", e);
+            }
+        }
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
     }
 
     private void logRequest(StringBuffer url, HttpServletRequest httpRequest) {
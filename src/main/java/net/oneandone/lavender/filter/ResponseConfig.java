@@ -0,0 +1,49 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+/**
+ * How LavenderizeHttpServletResponse delivers content, shared by all responses of a filter. Immutable.
+ */
+public class ResponseConfig {
+    /** No caching, no buffering, gzip like GZIPOutputStream */
+    public static final ResponseConfig DEFAULT = new ResponseConfig(null, new GzipPool(), null, 0);
+
+    /** Null if lavenderized stylesheets are not cached */
+    public final OutputCache cssCache;
+
+    public final GzipPool gzipPool;
+
+    /** Null if responses are not buffered; otherwise bodies up to the buffer size are sent with Content-Length and ETag */
+    public final BufferPool bufferPool;
+
+    /** Bodies with a known size below this number of bytes are not compressed */
+    public final int gzipMinSize;
+
+    public final Metrics metrics;
+
+    public ResponseConfig(OutputCache cssCache, GzipPool gzipPool, BufferPool bufferPool, int gzipMinSize) {
+        this(cssCache, gzipPool, bufferPool, gzipMinSize, new Metrics());
+    }
+
+    public ResponseConfig(OutputCache cssCache, GzipPool gzipPool, BufferPool bufferPool, int gzipMinSize, Metrics metrics) {
+        this.cssCache = cssCache;
+        this.gzipPool = gzipPool;
+        this.bufferPool = bufferPool;
+        this.gzipMinSize = gzipMinSize;
+        this.metrics = metrics;
+    }
+}
@@ -18,20 +18,34 @@ package net.oneandone.lavender.filter.processor;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Base implementation of {@link Processor}.
  */
 public abstract class AbstractProcessor implements Processor {
 
+    private static final int COPY_BUFFER_SIZE = 1024;
+
+    /** Buffers that have grown beyond this capacity are not kept when resetting a processor. */
+    private static final int MAX_RECYCLED_CAPACITY = 16 * 1024;
+
     /** The logger. */
     private final Logger log;
 
     /** The writer where the content is streamed to. */
     protected Writer out;
 
+    /**
+     * Null when processing chars. Otherwise the ascii-compatible charset of the content, which is processed byte by
+     * byte: every byte is treated as the char with the same value, and out writes every char back as one byte.
+     */
+    protected Charset byteCharset;
+
     /** The rewrite engine. */
     protected RewriteEngine rewriteEngine;
 
@@ -44,6 +58,9 @@ public abstract class AbstractProcessor implements Processor {
     /** Buffer where a potential URI string is stored before it is rewritten. */
     protected StringBuilder uriBuffer = new StringBuilder(128);
 
+    /** Used to process CharSequences; null until the first one is processed. */
+    private char[] copyBuffer;
+
     /**
      * Subclass constructor.
      * @param logger
@@ -57,7 +74,30 @@ public abstract class AbstractProcessor implements Processor {
      * {@inheritDoc}
      */
     public void setWriter(Writer writer) {
+        setOutput(writer, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setOutputStream(OutputStream dest, Charset charset) {
+        if (!isAsciiCompatible(charset)) {
+            throw new IllegalArgumentException("charset is not ascii-compatible: " + charset);
+        }
+        setOutput(new ByteWriter(dest, charset), charset);
+    }
+
+    protected void setOutput(Writer writer, Charset theByteCharset) {
         this.out = writer;
+        this.byteCharset = theByteCharset;
+    }
+
+    /** @return true if ascii characters are encoded as single bytes, and all other characters use bytes beyond 0x7f only */
+    public static boolean isAsciiCompatible(Charset charset) {
+        String name;
+
+        name = charset.name();
+        return name.equals("UTF-8") || name.equals("US-ASCII") || name.startsWith("ISO-8859-") || name.startsWith("windows-125");
     }
 
     /**
@@ -79,6 +119,9 @@ public abstract class AbstractProcessor implements Processor {
      * {@inheritDoc}
      */
     public void process(CharSequence chars, int offset, int length) throws IOException {
+        int end;
+        int count;
+
         if (log.isTraceEnabled()) {
             log.trace("Processing chars.length=" + chars.length() + ", offset=" + offset + ", length=" + length + "\n"
                     + chars.subSequence(offset, offset + length).toString());
@@ -86,9 +129,85 @@ public abstract class AbstractProcessor implements Processor {
             log.debug("Processing chars.length=" + chars.length() + ", offset=" + offset + ", length=" + length);
         }
 
-        for (int i = offset; i < offset + length; i++) {
-            char c = chars.charAt(i);
-            process(c);
+        if (copyBuffer == null) {
+            copyBuffer = new char[COPY_BUFFER_SIZE];
+        }
+        end = offset + length;
+        for (int i = offset; i < end; i += count) {
+            count = Math.min(end - i, copyBuffer.length);
+            copy(chars, i, i + count, copyBuffer);
+            processChars(copyBuffer, 0, count);
+        }
+    }
+
+    private static void copy(CharSequence src, int start, int end, char[] dest) {
+        if (src instanceof String) {
+            ((String) src).getChars(start, end, dest, 0);
+        } else if (src instanceof StringBuilder) {
+            ((StringBuilder) src).getChars(start, end, dest, 0);
+        } else {
+            for (int i = start; i < end; i++) {
+                dest[i - start] = src.charAt(i);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void process(char[] chars, int offset, int length) throws IOException {
+        if (log.isTraceEnabled()) {
+            log.trace("Processing chars.length=" + chars.length + ", offset=" + offset + ", length=" + length + "\n"
+                    + new String(chars, offset, length));
+        } else if (log.isDebugEnabled()) {
+            log.debug("Processing chars.length=" + chars.length + ", offset=" + offset + ", length=" + length);
+        }
+
+        processChars(chars, offset, offset + length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void process(byte[] bytes, int offset, int length) throws IOException {
+        int end;
+        int count;
+
+        if (byteCharset == null) {
+            throw new IllegalStateException("not in byte mode");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Processing bytes.length=" + bytes.length + ", offset=" + offset + ", length=" + length);
+        }
+        if (copyBuffer == null) {
+            copyBuffer = new char[COPY_BUFFER_SIZE];
+        }
+        end = offset + length;
+        for (int i = offset; i < end; i += count) {
+            count = Math.min(end - i, copyBuffer.length);
+            for (int j = 0; j < count; j++) {
+                copyBuffer[j] = (char) (bytes[i + j] & 0xff);
+            }
+            processChars(copyBuffer, 0, count);
+        }
+    }
+
+    /**
+     * Processes the characters from start (inclusive) to end (exclusive). The default implementation dispatches
+     * every single character to {@link #process(char)}; subclasses may override this to handle runs of characters
+     * at once, but they have to produce the same output.
+     * @param chars
+     *            the characters to process
+     * @param start
+     *            index of the first character to process
+     * @param end
+     *            index after the last character to process
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    protected void processChars(char[] chars, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            process(chars[i]);
         }
     }
 
@@ -101,6 +220,29 @@ public abstract class AbstractProcessor implements Processor {
      */
     protected abstract void process(char c) throws IOException;
 
+    /**
+     * Rewrites a reference found in the content. In byte mode, references with non-ascii bytes are decoded before they
+     * are passed to the rewrite engine, and the result is encoded again.
+     */
+    protected String rewrite(String reference) {
+        String result;
+
+        if (byteCharset == null || isAscii(reference)) {
+            return rewriteEngine.rewrite(reference, baseURI, contextPath);
+        }
+        result = rewriteEngine.rewrite(new String(reference.getBytes(StandardCharsets.ISO_8859_1), byteCharset), baseURI, contextPath);
+        return new String(result.getBytes(byteCharset), StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isAscii(String str) {
+        for (int i = 0, max = str.length(); i < max; i++) {
+            if (str.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -119,4 +261,102 @@ public abstract class AbstractProcessor implements Processor {
         flush();
         out.close();
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() {
+        out = null;
+        byteCharset = null;
+        rewriteEngine = null;
+        baseURI = null;
+        contextPath = null;
+        uriBuffer = recycle(uriBuffer, 128);
+    }
+
+    /** Writes chars processed in byte mode back as bytes. */
+    private static class ByteWriter extends Writer {
+        private final OutputStream dest;
+        private final Charset charset;
+        private final byte[] buffer;
+
+        ByteWriter(OutputStream dest, Charset charset) {
+            this.dest = dest;
+            this.charset = charset;
+            this.buffer = new byte[COPY_BUFFER_SIZE];
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (c > 0xff) {
+                write(new char[] { (char) c }, 0, 1);
+            } else {
+                dest.write(c);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int count;
+            char c;
+
+            while (len > 0) {
+                count = Math.min(len, buffer.length);
+                for (int i = 0; i < count; i++) {
+                    c = str.charAt(off + i);
+                    if (c > 0xff) {
+                        write(str.toCharArray(), off, len);
+                        return;
+                    }
+                    buffer[i] = (byte) c;
+                }
+                dest.write(buffer, 0, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int count;
+            char c;
+
+            count = 0;
+            for (int i = off, end = off + len; i < end; i++) {
+                c = cbuf[i];
+                if (c > 0xff) {
+                    // not produced from bytes - e.g. a decoded css escape; fall back to the charset
+                    dest.write(buffer, 0, count);
+                    count = 0;
+                    dest.write(String.valueOf(c).getBytes(charset));
+                    continue;
+                }
+                buffer[count++] = (byte) c;
+                if (count == buffer.length) {
+                    dest.write(buffer, 0, count);
+                    count = 0;
+                }
+            }
+            dest.write(buffer, 0, count);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            dest.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            dest.close();
+        }
+    }
+
+    /** @return the cleared buffer, or a new one if the buffer has grown too big to be kept */
+    protected static StringBuilder recycle(StringBuilder buffer, int initialCapacity) {
+        if (buffer.capacity() > MAX_RECYCLED_CAPACITY) {
+            return new StringBuilder(initialCapacity);
+        }
+        buffer.setLength(0);
+        return buffer;
+    }
 }
@@ -16,10 +16,9 @@
 package net.oneandone.lavender.filter.processor;
 
 import net.oneandone.lavender.index.Index;
+import net.oneandone.lavender.index.Md5;
 
 import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -55,6 +54,11 @@ public class ConsistentHash {
         }
     }
 
+    /** @return immutable snapshot of the current circle, optimized for lookups */
+    public FrozenConsistentHash freeze() {
+        return new FrozenConsistentHash(circle);
+    }
+
     /**
      * Gets the node for a MD5 hash.
      * @param md5
@@ -88,6 +92,10 @@ public class ConsistentHash {
      * @return the circle key
      */
     protected Integer key(byte[] md5) {
+        return intKey(md5);
+    }
+
+    static int intKey(byte[] md5) {
         if (md5.length != 16) {
             throw new IllegalArgumentException("Expected a 16 byte / 128 bit hash.");
         }
@@ -97,18 +105,12 @@ public class ConsistentHash {
 
     public static byte[] md5(String data) {
         byte[] bytes;
-        MessageDigest digest;
 
         try {
             bytes = data.getBytes(Index.ENCODING);
         } catch (UnsupportedEncodingException e) {
             throw new IllegalStateException(e);
         }
-        try {
-            digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException(e);
-        }
-        return digest.digest(bytes);
+        return Md5.md5(bytes);
     }
 }
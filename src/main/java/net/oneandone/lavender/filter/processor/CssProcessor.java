@@ -94,6 +94,12 @@ public class CssProcessor extends AbstractProcessor {
         }
     }
 
+    @Override
+    public void reset() {
+        super.reset();
+        state = State.OTHER;
+    }
+
     protected void processUrl(char c) throws IOException {
         if (c == ')' && uriBuffer.length() > 0 && uriBuffer.charAt(uriBuffer.length() - 1) != '\\') {
             rewriteUrl();
@@ -134,7 +140,7 @@ public class CssProcessor extends AbstractProcessor {
             out.write(uriBuffer.toString());
         } else {
             out.write(uriBuffer.substring(0, start));
-            out.write(rewriteEngine.rewrite(uri, baseURI, contextPath));
+            out.write(rewrite(uri));
             out.write(uriBuffer.substring(end));
         }
         uriBuffer.setLength(0);
@@ -0,0 +1,70 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter.processor;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Immutable {@link ConsistentHash}: ring points are stored in a sorted int array with a parallel array of nodes,
+ * lookups are a binary search without boxing or allocation. Chooses the same nodes as the ConsistentHash it
+ * was created from.
+ */
+public final class FrozenConsistentHash {
+    private final int[] points;
+    private final String[] nodes;
+
+    FrozenConsistentHash(SortedMap<Integer, String> circle) {
+        int i;
+
+        points = new int[circle.size()];
+        nodes = new String[circle.size()];
+        i = 0;
+        for (Map.Entry<Integer, String> entry : circle.entrySet()) {
+            points[i] = entry.getKey();
+            nodes[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    public int size() {
+        return points.length;
+    }
+
+    /**
+     * Gets the node for a MD5 hash.
+     * @param md5
+     *            the MD5 hash
+     * @return the node
+     */
+    public String getNodeForHash(byte[] md5) {
+        int idx;
+
+        if (points.length == 0) {
+            throw new IllegalStateException("No node in hash circle.");
+        }
+        idx = Arrays.binarySearch(points, ConsistentHash.intKey(md5));
+        if (idx < 0) {
+            // not found: use the next point on the ring
+            idx = -idx - 1;
+            if (idx == points.length) {
+                idx = 0;
+            }
+        }
+        return nodes[idx];
+    }
+}
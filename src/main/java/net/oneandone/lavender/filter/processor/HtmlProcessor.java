@@ -65,6 +65,9 @@ public class HtmlProcessor extends AbstractProcessor {
     /** The relevant attributes in the current currentTag, in order. */
     protected List<HtmlAttributeValue> attributes = new ArrayList<>();
 
+    /** Rewrites style attributes; null until the first one is found. */
+    private CssProcessor cssProcessor;
+
     private HtmlTag[] knownTags;
     private HtmlAttribute[] knownAttributes;
     private UrlRewriteMatcher[] urlRewriteMatchers;
@@ -143,6 +146,90 @@ public class HtmlProcessor extends AbstractProcessor {
         super.flush();
     }
 
+    @Override
+    public void reset() {
+        super.reset();
+        state = State.NULL;
+        currentTag = null;
+        currentAttribute = null;
+        attributeValueStartIndex = -1;
+        attributeNameStartIndex = -1;
+        tagBuffer = recycle(tagBuffer, 100);
+        attributes.clear();
+        if (cssProcessor != null) {
+            cssProcessor.reset();
+        }
+    }
+
+    /**
+     * Block-oriented processing: in states that merely wait for one or two significant characters, the run up to the
+     * next significant character is handled in one go. Significant characters and all other states are dispatched to
+     * {@link #process(char)}, so the output is the same as for char-by-char processing.
+     */
+    @Override
+    protected void processChars(char[] chars, int start, int end) throws IOException {
+        int i;
+        int next;
+
+        i = start;
+        while (i < end) {
+            switch (state) {
+                case NULL:
+                    next = indexOf(chars, i, end, '<', '<');
+                    out.write(chars, i, next - i);
+                    break;
+                case SPECIAL_DOCTYPE:
+                    next = indexOf(chars, i, end, '>', '>');
+                    out.write(chars, i, next - i);
+                    break;
+                case SPECIAL_COMMENT:
+                    next = indexOf(chars, i, end, '-', '>');
+                    skipSpecial(chars, i, next);
+                    break;
+                case SPECIAL_CDATA:
+                    next = indexOf(chars, i, end, ']', '>');
+                    skipSpecial(chars, i, next);
+                    break;
+                case VALUE_START_DQ:
+                    next = indexOf(chars, i, end, '"', '"');
+                    tagBuffer.append(chars, i, next - i);
+                    break;
+                case VALUE_START_SQ:
+                    next = indexOf(chars, i, end, '\'', '\'');
+                    tagBuffer.append(chars, i, next - i);
+                    break;
+                default:
+                    next = i;
+                    break;
+            }
+            if (next < end) {
+                process(chars[next]);
+            }
+            i = next + 1;
+        }
+    }
+
+    /** Same as calling matchSpecialEnd for every character in the run, given that none of them is significant. */
+    private void skipSpecial(char[] chars, int start, int end) throws IOException {
+        if (start < end) {
+            tagBuffer.setLength(0);
+            out.write(chars, start, end - start);
+        }
+    }
+
+    /** @return index of the first occurrence of a or b, end if there is none */
+    private static int indexOf(char[] chars, int start, int end, char a, char b) {
+        char c;
+
+        for (int i = start; i < end; i++) {
+            c = chars[i];
+            if (c == a || c == b) {
+                return i;
+            }
+        }
+        return end;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -277,8 +364,16 @@ public class HtmlProcessor extends AbstractProcessor {
         out.write(c);
     }
 
+    /**
+     * In byte mode, c is a single byte of a possibly multi-byte sequence; only ascii bytes can be whitespace there,
+     * otherwise e.g. the utf-8 continuation byte 0xa0 would split names and unquoted values.
+     */
+    private boolean isSpace(char c) {
+        return Character.isSpaceChar(c) && (byteCharset == null || c < 0x80);
+    }
+
     private void matchTag(char c) throws IOException {
-        if (Character.isSpaceChar(c)) {
+        if (isSpace(c)) {
             state = State.TAG;
             currentTag = findTagByName(tagBuffer.toString().toLowerCase());
             tagBuffer.append(c);
@@ -306,7 +401,7 @@ public class HtmlProcessor extends AbstractProcessor {
         } else if (c == '/') {
             // ignore this
             tagBuffer.append(c);
-        } else if (!Character.isSpaceChar(c)) {
+        } else if (!isSpace(c)) {
             state = State.ATTRIBUTE_START;
             attributeNameStartIndex = tagBuffer.length();
             tagBuffer.append(c);
@@ -316,7 +411,7 @@ public class HtmlProcessor extends AbstractProcessor {
     }
 
     private void matchAttribute(char c) throws IOException {
-        if (c == '=' || Character.isSpaceChar(c)) {
+        if (c == '=' || isSpace(c)) {
             state = State.ATTRIBUTE;
 
             // match the attribute
@@ -340,7 +435,7 @@ public class HtmlProcessor extends AbstractProcessor {
         if (c == '=') {
             state = State.ATTRIBUTE_EQUALS;
             tagBuffer.append(c);
-        } else if (!Character.isSpaceChar(c)) {
+        } else if (!isSpace(c)) {
             state = State.ATTRIBUTE_START;
             attributeNameStartIndex = tagBuffer.length();
             matchAttribute(c);
@@ -359,7 +454,7 @@ public class HtmlProcessor extends AbstractProcessor {
             state = State.VALUE_START_SQ;
             tagBuffer.append(c);
             markValueStart();
-        } else if (!Character.isSpaceChar(c)) {
+        } else if (!isSpace(c)) {
             state = State.VALUE_START_UQ;
             markValueStart();
             matchUnquotedValue(c);
@@ -370,7 +465,7 @@ public class HtmlProcessor extends AbstractProcessor {
     }
 
     private void matchUnquotedValue(char c) {
-        if (Character.isSpaceChar(c)) {
+        if (isSpace(c)) {
             state = State.VALUE;
             markValueLength();
             tagBuffer.append(c);
@@ -435,14 +530,18 @@ public class HtmlProcessor extends AbstractProcessor {
     }
 
     private void matchesRewriteUrl(String attributeValue) throws IOException {
-        String str = rewriteEngine.rewrite(attributeValue, baseURI, contextPath);
+        String str = rewrite(attributeValue);
         out.write(str);
     }
 
     private void rewriteCss(HtmlAttributeValue htmlAttributeValue) throws IOException {
-        CssProcessor cssProcessor = new CssProcessor();
+        if (cssProcessor == null) {
+            cssProcessor = new CssProcessor();
+        } else {
+            cssProcessor.reset();
+        }
         cssProcessor.setRewriteEngine(rewriteEngine, baseURI, contextPath);
-        cssProcessor.setWriter(out);
+        cssProcessor.setOutput(out, byteCharset);
         cssProcessor.process(tagBuffer, htmlAttributeValue.start, htmlAttributeValue.end - htmlAttributeValue.start);
     }
 
@@ -452,7 +551,7 @@ public class HtmlProcessor extends AbstractProcessor {
         while (elements.find()) {
             String url = elements.group(2);
             if (!url.startsWith("data:")) {
-                url = rewriteEngine.rewrite(url, baseURI, contextPath);
+                url = rewrite(url);
             }
             elements.appendReplacement(replacement, new StringBuilder()
                     .append(elements.group(1))
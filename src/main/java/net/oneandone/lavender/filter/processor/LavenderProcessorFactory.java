@@ -15,13 +15,15 @@
  */
 package net.oneandone.lavender.filter.processor;
 
+import net.oneandone.lavender.index.StripedPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URI;
 
 /**
- * Factory for two content types: text/html and text/css.
+ * Factory for two content types: text/html and text/css. Optionally recycles processors: released processors are reset
+ * and kept in a striped pool, where the stripe is selected by the current thread.
  */
 public class LavenderProcessorFactory implements ProcessorFactory {
 
@@ -29,10 +31,30 @@ public class LavenderProcessorFactory implements ProcessorFactory {
 
     protected final RewriteEngine rewriteEngine;
 
+    /** null if recycling is disabled */
+    private final StripedPool<HtmlProcessor> htmlPool;
+
+    /** null if recycling is disabled */
+    private final StripedPool<CssProcessor> cssPool;
+
     public LavenderProcessorFactory(RewriteEngine rewriteEngine) {
+        this(rewriteEngine, 0);
+    }
+
+    /**
+     * @param poolStripes number of pooled processors per content type, rounded up to a power of 2; 0 disables recycling
+     */
+    public LavenderProcessorFactory(RewriteEngine rewriteEngine, int poolStripes) {
         this.rewriteEngine = rewriteEngine;
+        if (poolStripes > 0) {
+            this.htmlPool = new StripedPool<>(poolStripes);
+            this.cssPool = new StripedPool<>(poolStripes);
+        } else {
+            this.htmlPool = null;
+            this.cssPool = null;
+        }
         if (LOG.isInfoEnabled()) {
-            LOG.info("Created default processor factory");
+            LOG.info("Created default processor factory, pool stripes: " + (htmlPool == null ? 0 : htmlPool.size()));
         }
     }
 
@@ -41,9 +63,15 @@ public class LavenderProcessorFactory implements ProcessorFactory {
         Processor processor = null;
 
         if ("text/html".equals(baseContentType)) {
-            processor = new HtmlProcessor();
+            processor = htmlPool == null ? null : htmlPool.borrow();
+            if (processor == null) {
+                processor = new HtmlProcessor();
+            }
         } else if ("text/css".equals(baseContentType)) {
-            processor = new CssProcessor();
+            processor = cssPool == null ? null : cssPool.borrow();
+            if (processor == null) {
+                processor = new CssProcessor();
+            }
         } else {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("No processor created for content type '" + baseContentType + "'");
@@ -56,4 +84,19 @@ public class LavenderProcessorFactory implements ProcessorFactory {
 
         return processor;
     }
+
+    @Override
+    public void releaseProcessor(Processor processor) {
+        if (htmlPool == null) {
+            return;
+        }
+        // if the stripe is occupied, the processor is left to the garbage collector
+        if (processor.getClass() == HtmlProcessor.class) {
+            processor.reset();
+            htmlPool.giveBack((HtmlProcessor) processor);
+        } else if (processor.getClass() == CssProcessor.class) {
+            processor.reset();
+            cssPool.giveBack((CssProcessor) processor);
+        }
+    }
 }
@@ -17,6 +17,7 @@ package net.oneandone.lavender.filter.processor;
 
 import net.oneandone.lavender.index.Index;
 import net.oneandone.lavender.index.Label;
+import net.oneandone.lavender.index.ReadOnlyIndex;
 import net.oneandone.sushi.fs.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +32,8 @@ import java.net.URL;
 import java.text.MessageFormat;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import static net.oneandone.lavender.filter.processor.UriHelper.resolvePathWithoutContext;
 
@@ -42,19 +45,19 @@ public class LavenderRewriteEngine implements RewriteEngine {
 
     //--
 
-    public static RewriteEngine load(Index index, Node nodesFiles) throws IOException {
+    public static LavenderRewriteEngine load(ReadOnlyIndex index, Node nodesFiles) throws IOException {
         try (InputStream src = nodesFiles.newInputStream()) {
             return load(index, src);
         }
     }
 
-    public static RewriteEngine load(Index index, URL url) throws IOException {
+    public static LavenderRewriteEngine load(ReadOnlyIndex index, URL url) throws IOException {
         try (InputStream src = url.openStream()) {
             return load(index, src);
         }
     }
 
-    public static RewriteEngine load(Index index, InputStream raw) throws IOException {
+    public static LavenderRewriteEngine load(ReadOnlyIndex index, InputStream raw) throws IOException {
         LavenderRewriteEngine result;
         BufferedReader in;
         String line;
@@ -80,7 +83,7 @@ public class LavenderRewriteEngine implements RewriteEngine {
 
     //--
 
-    protected final Index index;
+    protected final ReadOnlyIndex index;
 
     /** The nodes used for HTTP */
     protected final Map<String, URI> httpNodes;
@@ -91,11 +94,39 @@ public class LavenderRewriteEngine implements RewriteEngine {
     /** The consistent hash function. */
     protected final ConsistentHash consistentHash;
 
+    /** Snapshot of consistentHash used for lookups; null until first use, reset when nodes are added */
+    private volatile FrozenConsistentHash ring;
+
+    /** Urls by index entry; filled on first use */
+    private AtomicReferenceArray<Target> targets;
+
+    /** Null if rewrite results are not cached */
+    private RewriteCache cache;
+
+    /** Calls of rewrite, including those answered by the cache */
+    private LongAdder rewrites;
+
+    /** Index lookups that found an entry */
+    private LongAdder indexHits;
+
+    /** Index lookups that found nothing */
+    private LongAdder indexMisses;
+
+    /** Uses a snapshot of the index; later changes to the index are not visible to the engine. */
     public LavenderRewriteEngine(Index index) {
+        this(index.freeze());
+    }
+
+    public LavenderRewriteEngine(ReadOnlyIndex index) {
         this.index = index;
         this.consistentHash = new ConsistentHash(200);
         this.httpNodes = new HashMap<>();
         this.httpsNodes = new HashMap<>();
+        this.targets = new AtomicReferenceArray<>(index.size());
+        this.cache = null;
+        this.rewrites = new LongAdder();
+        this.indexHits = new LongAdder();
+        this.indexMisses = new LongAdder();
     }
 
     public void add(URI uri) {
@@ -113,27 +144,169 @@ public class LavenderRewriteEngine implements RewriteEngine {
             default:
                 throw new IllegalArgumentException(uri + " has unsupported scheme, only http and https are supported.");
         }
+        ring = null;
+        targets = new AtomicReferenceArray<>(index.size());
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /** @param cache null to disable caching */
+    public void setCache(RewriteCache cache) {
+        this.cache = cache;
+    }
+
+    /** @return null if caching is disabled */
+    public RewriteCache getCache() {
+        return cache;
+    }
+
+    public long getRewrites() {
+        return rewrites.sum();
+    }
+
+    public long getIndexHits() {
+        return indexHits.sum();
+    }
+
+    public long getIndexMisses() {
+        return indexMisses.sum();
     }
 
-    public String rewrite(String uri, URI baseURI, String contextPath) {
+    /** Continues counting where the previous engine stopped; call before this engine is published to other threads. */
+    public void inheritCounters(LavenderRewriteEngine previous) {
+        rewrites = previous.rewrites;
+        indexHits = previous.indexHits;
+        indexMisses = previous.indexMisses;
+    }
+
+    /** @param reset true to start over after the snapshot */
+    public void snapshot(boolean reset, Map<String, Long> dest) {
+        dest.put("rewrites", reset ? rewrites.sumThenReset() : rewrites.sum());
+        dest.put("index.hits", reset ? indexHits.sumThenReset() : indexHits.sum());
+        dest.put("index.misses", reset ? indexMisses.sumThenReset() : indexMisses.sum());
+    }
+
+    public String rewrite(String raw, URI baseURI, String contextPath) {
+        String uri;
         URI reference;
         String result;
 
-        uri = UriHelper.removeLeadingTrailingQuotes(uri);
+        rewrites.increment();
+        if (cache != null) {
+            result = cache.lookup(raw, baseURI, contextPath);
+            if (result != null) {
+                return result;
+            }
+        }
+        uri = UriHelper.removeLeadingTrailingQuotes(raw);
 
         try {
             reference = new URI(uri);
         } catch (URISyntaxException e) {
             LOG.warn("cannot rewrite invalid URI '" + uri + "': " + e.getMessage());
+            if (cache != null) {
+                cache.put(raw, baseURI, contextPath, null, uri);
+            }
             return uri;
         }
-        result = rewrite(reference, baseURI, contextPath).toASCIIString();
+        result = rewriteToString(reference, baseURI, contextPath);
         if (LOG.isDebugEnabled()) {
             LOG.debug("rewrite ok: '" + uri + "' -> '" + result + "'");
         }
+        if (cache != null) {
+            cacheResult(raw, reference, baseURI, contextPath, result);
+        }
         return result;
     }
 
+    /** Caches the result unless it depends on more than the scheme and the directory of the base URI. */
+    private void cacheResult(String raw, URI reference, URI baseURI, String contextPath, String result) {
+        String path;
+        String basePath;
+
+        path = reference.getRawPath();
+        if (reference.isOpaque() || reference.getScheme() != null || reference.getRawAuthority() != null || path.startsWith("/")) {
+            cache.put(raw, baseURI, contextPath, null, result);
+        } else if (!path.isEmpty()) {
+            basePath = baseURI.getRawPath();
+            if (basePath != null && baseURI.getRawAuthority() != null) {
+                cache.put(raw, baseURI, contextPath, basePath.substring(0, basePath.lastIndexOf('/') + 1), result);
+            }
+        }
+    }
+
+
+    /** Same result as rewrite(reference, baseURI, contextPath).toASCIIString(), but based on precomputed urls. */
+    private String rewriteToString(URI reference, URI baseURI, String contextPath) {
+        String resolved;
+        Target target;
+        String url;
+        String query;
+
+        resolved = resolvePathWithoutContext(reference, baseURI, contextPath);
+        target = resolved == null ? null : target(resolved);
+        if (target == null) {
+            if (LOG.isDebugEnabled()) {
+                String message = "No resource found in index for reference={0}, baseURI={1}, contextPath={2}";
+                String formatted = MessageFormat.format(message, reference, baseURI, contextPath);
+                LOG.debug(formatted);
+            }
+            return reference.toASCIIString();
+        }
+        url = baseURI.getScheme().equals("https") ? target.https : target.http;
+        query = reference.getRawQuery();
+        if (url == null || (query != null && !isPlainQuery(query))) {
+            // no precomputed url or the URI constructor would re-encode the query
+            return calculateURL(target.label, baseURI, reference.getQuery()).toASCIIString();
+        }
+        return query == null ? url : url + '?' + query;
+    }
+
+    /** @return null if not found in index */
+    private Target target(String originalPath) {
+        int entry;
+        Target result;
+        Label label;
+
+        entry = index.find(originalPath);
+        if (entry == -1) {
+            indexMisses.increment();
+            return null;
+        }
+        indexHits.increment();
+        result = targets.get(entry);
+        if (result == null) {
+            label = index.label(entry);
+            result = new Target(label, urlOpt(label, false), urlOpt(label, true));
+            targets.set(entry, result);
+        }
+        return result;
+    }
+
+    /** @return null if there's no node for the label */
+    private String urlOpt(Label label, boolean https) {
+        Map<String, URI> nodes;
+
+        nodes = https ? httpsNodes : httpNodes;
+        if (!nodes.containsKey(ring().getNodeForHash(label.md5()))) {
+            return null;
+        }
+        return calculateURL(label, https, null).toASCIIString();
+    }
+
+    /** @return true if decoding and re-quoting the query does not change it */
+    private static boolean isPlainQuery(String rawQuery) {
+        char c;
+
+        for (int i = 0, max = rawQuery.length(); i < max; i++) {
+            c = rawQuery.charAt(i);
+            if (c == '%' || c >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
 
     public URI rewrite(URI reference, URI baseURI, String contextPath) {
         Label label;
@@ -156,13 +329,17 @@ public class LavenderRewriteEngine implements RewriteEngine {
     }
 
     public URI calculateURL(Label label, URI baseURI, String query) {
+        return calculateURL(label, baseURI.getScheme().equals("https"), query);
+    }
+
+    private URI calculateURL(Label label, boolean https, String query) {
         if (label.getLavendelizedPath() == null) {
             throw new IllegalStateException();
         }
         byte[] md5 = label.md5();
-        String node = consistentHash.getNodeForHash(md5);
+        String node = ring().getNodeForHash(md5);
         String lavendelizedPath = label.getLavendelizedPath();
-        URI nodeURI = baseURI.getScheme().equals("https") ? httpsNodes.get(node) : httpNodes.get(node);
+        URI nodeURI = https ? httpsNodes.get(node) : httpNodes.get(node);
         String path = nodeURI.getPath() + lavendelizedPath;
         int port = nodeURI.getPort();
         try {
@@ -172,6 +349,17 @@ public class LavenderRewriteEngine implements RewriteEngine {
         }
     }
 
+    private FrozenConsistentHash ring() {
+        FrozenConsistentHash result;
+
+        result = ring;
+        if (result == null) {
+            result = consistentHash.freeze();
+            ring = result;
+        }
+        return result;
+    }
+
     Label lookup(URI reference, URI baseURI, String contextPath) {
         String resolved;
         Label label;
@@ -183,4 +371,21 @@ public class LavenderRewriteEngine implements RewriteEngine {
         }
         return label;
     }
+
+    /** Absolute urls for a label, without query. */
+    private static final class Target {
+        private final Label label;
+
+        /** null if there's no http node for the label */
+        private final String http;
+
+        /** null if there's no https node for the label */
+        private final String https;
+
+        private Target(Label label, String http, String https) {
+            this.label = label;
+            this.http = http;
+            this.https = https;
+        }
+    }
 }
@@ -16,8 +16,10 @@
 package net.oneandone.lavender.filter.processor;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.Charset;
 
 /**
  * A {@link Processor} scans content for rewritable URIs, delegates the rewrite to the
@@ -31,6 +33,16 @@ public interface Processor {
      */
     void setWriter(Writer out);
 
+    /**
+     * Switches to byte mode: content is passed as bytes in the specified charset and streamed to dest without decoding
+     * and encoding. Bytes of non-ascii content pass unchanged.
+     * @param dest
+     *            the stream where the content is written to
+     * @param charset
+     *            the content encoding, must be ascii-compatible
+     */
+    void setOutputStream(OutputStream dest, Charset charset);
+
     /**
      * Sets the rewrite engine, used to rewrite URIs.
      * @param rewriteEngine
@@ -56,6 +68,34 @@ public interface Processor {
      */
     void process(CharSequence chars, int offset, int length) throws IOException;
 
+    /**
+     * Processes a character array. This is the fast path for writers; the implementation must process all
+     * characters in the given range because the array is reused.
+     * @param chars
+     *            the character array to process
+     * @param offset
+     *            offset from which to start processing characters
+     * @param length
+     *            number of characters to process
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    void process(char[] chars, int offset, int length) throws IOException;
+
+    /**
+     * Processes a byte array in byte mode, i.e. after setOutputStream. The implementation must process all bytes in
+     * the given range because the array is reused.
+     * @param bytes
+     *            the byte array to process
+     * @param offset
+     *            offset from which to start processing bytes
+     * @param length
+     *            number of bytes to process
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    void process(byte[] bytes, int offset, int length) throws IOException;
+
     /**
      * Process all outstanding characters that may be bufferd.
      * @throws IOException
@@ -64,4 +104,10 @@ public interface Processor {
     void flush() throws IOException;
 
     void close() throws IOException;
+
+    /**
+     * Prepares this processor for reuse with the next response: clears all state and drops references to writer and
+     * rewrite engine. Oversized buffers are replaced to avoid keeping memory pinned by one large page.
+     */
+    void reset();
 }
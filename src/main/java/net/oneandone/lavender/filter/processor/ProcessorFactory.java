@@ -19,4 +19,8 @@ import java.net.URI;
 
 public interface ProcessorFactory {
     Processor createProcessor(String baseContentType, URI baseURI, String contextPath);
+
+    /** Called when the response is done with the processor; the default implementation simply drops it. */
+    default void releaseProcessor(Processor processor) {
+    }
 }
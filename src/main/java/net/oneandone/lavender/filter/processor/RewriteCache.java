@@ -0,0 +1,152 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter.processor;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded cache for rewrite results. Keys are raw references; every key maps to a few variants that
+ * remember the part of the base URI and the context path the result was computed for. Thread-safe.
+ */
+public class RewriteCache {
+    /** variants per reference; a reference found on pages in many directories is re-computed for the others */
+    private static final int MAX_VARIANTS = 4;
+
+    private final int maxSize;
+    private final ConcurrentHashMap<String, Variant[]> map;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    public RewriteCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("" + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    /** @return null if not found */
+    public String lookup(String reference, URI baseURI, String contextPath) {
+        Variant[] variants;
+
+        variants = map.get(reference);
+        if (variants != null) {
+            for (Variant variant : variants) {
+                if (variant.matches(baseURI, contextPath)) {
+                    hits.increment();
+                    return variant.result;
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @param directory null if the result does not depend on the path of the base URI, otherwise the raw path
+     *                  of the base URI up to and including the last slash
+     */
+    public void put(String reference, URI baseURI, String contextPath, String directory, String result) {
+        Variant variant;
+
+        variant = new Variant(baseURI.getScheme(), contextPath, directory, result);
+        if (map.size() >= maxSize && !map.containsKey(reference)) {
+            evictOne();
+        }
+        map.compute(reference, (key, old) -> {
+            Variant[] next;
+
+            if (old == null) {
+                return new Variant[] { variant };
+            }
+            if (old.length < MAX_VARIANTS) {
+                next = new Variant[old.length + 1];
+                System.arraycopy(old, 0, next, 1, old.length);
+            } else {
+                next = new Variant[MAX_VARIANTS];
+                System.arraycopy(old, 0, next, 1, MAX_VARIANTS - 1);
+            }
+            next[0] = variant;
+            return next;
+        });
+    }
+
+    private void evictOne() {
+        Iterator<String> iter;
+
+        iter = map.keySet().iterator();
+        if (iter.hasNext() && map.remove(iter.next()) != null) {
+            evictions.increment();
+        }
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private static class Variant {
+        private final String scheme;
+        private final String contextPath;
+        private final String directory;
+        private final String result;
+
+        Variant(String scheme, String contextPath, String directory, String result) {
+            this.scheme = scheme;
+            this.contextPath = contextPath;
+            this.directory = directory;
+            this.result = result;
+        }
+
+        boolean matches(URI baseURI, String otherContextPath) {
+            String path;
+
+            if (!contextPath.equals(otherContextPath)) {
+                return false;
+            }
+            if (scheme == null ? baseURI.getScheme() != null : !scheme.equals(baseURI.getScheme())) {
+                return false;
+            }
+            if (directory == null) {
+                return true;
+            }
+            path = baseURI.getRawPath();
+            return path != null && path.startsWith(directory) && path.indexOf('/', directory.length()) == -1;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only snapshot of an Index for concurrent lookups. Original paths are stored in an open addressing table,
+ * lavendelized paths are shared between entries, md5 sums are packed into a single array. Entries are numbered
+ * from 0 to size() - 1; find() maps an original path to its entry without locking and without allocating.
+ */
+public final class FrozenIndex implements ReadOnlyIndex {
+    private final String[] originalPaths;
+    private final String[] lavendelizedPaths;
+
+    /** md5 sums of all entries, entry i is at md5Offsets[i] to md5Offsets[i + 1] */
+    private final byte[] md5s;
+    private final int[] md5Offsets;
+
+    /** Open addressing table with linear probing; entry + 1, 0 for empty slots. */
+    private final int[] slots;
+    private final int mask;
+
+    FrozenIndex(Index index) {
+        Map<String, String> interned;
+        String lavendelized;
+        String prev;
+        byte[] md5;
+        byte[] packed;
+        int size;
+        int capacity;
+        int entry;
+        int offset;
+
+        size = index.size();
+        originalPaths = new String[size];
+        lavendelizedPaths = new String[size];
+        md5Offsets = new int[size + 1];
+        packed = new byte[size * 16];
+        capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        slots = new int[capacity];
+        mask = capacity - 1;
+        interned = new HashMap<>();
+        entry = 0;
+        offset = 0;
+        for (Label label : index) {
+            lavendelized = label.getLavendelizedPath();
+            prev = interned.putIfAbsent(lavendelized, lavendelized);
+            md5 = label.md5();
+            if (offset + md5.length > packed.length) {
+                packed = Arrays.copyOf(packed, Math.max(packed.length * 2, offset + md5.length));
+            }
+            originalPaths[entry] = label.getOriginalPath();
+            lavendelizedPaths[entry] = prev == null ? lavendelized : prev;
+            System.arraycopy(md5, 0, packed, offset, md5.length);
+            offset += md5.length;
+            md5Offsets[entry + 1] = offset;
+            slots[slot(label.getOriginalPath())] = entry + 1;
+            entry++;
+        }
+        if (entry != size) {
+            throw new IllegalStateException("index modified while freezing");
+        }
+        md5s = offset == packed.length ? packed : Arrays.copyOf(packed, offset);
+    }
+
+    /** @return the free slot for a path not yet in the table */
+    private int slot(String originalPath) {
+        int i;
+
+        for (i = spread(originalPath.hashCode()) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            // probe
+        }
+        return i;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public int size() {
+        return originalPaths.length;
+    }
+
+    @Override
+    public int find(String originalPath) {
+        int entry;
+
+        for (int i = spread(originalPath.hashCode()) & mask; true; i = (i + 1) & mask) {
+            entry = slots[i];
+            if (entry == 0) {
+                return -1;
+            }
+            if (originalPath.equals(originalPaths[entry - 1])) {
+                return entry - 1;
+            }
+        }
+    }
+
+    public String getOriginalPath(int entry) {
+        return originalPaths[entry];
+    }
+
+    public String getLavendelizedPath(int entry) {
+        return lavendelizedPaths[entry];
+    }
+
+    /** @return a copy of the md5 sum */
+    public byte[] md5(int entry) {
+        int start;
+        byte[] result;
+
+        start = md5Offsets[entry];
+        result = new byte[md5Offsets[entry + 1] - start];
+        System.arraycopy(md5s, start, result, 0, result.length);
+        return result;
+    }
+
+    @Override
+    public Label label(int entry) {
+        return new Label(originalPaths[entry], lavendelizedPaths[entry], md5(entry));
+    }
+}
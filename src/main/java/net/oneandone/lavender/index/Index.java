@@ -192,6 +192,11 @@ public class Index implements Iterable<Label> {
         return new Label(originalPath, lavendelizedPath, md5);
     }
 
+    /** @return read-only snapshot of this index for lookups from many threads */
+    public FrozenIndex freeze() {
+        return new FrozenIndex(this);
+    }
+
     public boolean equals(Object obj) {
         if (obj instanceof Index) {
             return properties.equals(((Index) obj).properties);
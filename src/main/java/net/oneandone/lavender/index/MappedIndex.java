@@ -0,0 +1,277 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary companion of the text index, looked up directly in a read-only memory mapped buffer.
+ *
+ * Format (big endian):
+ *   int magic, int version, int count
+ *   count entries, sorted by the utf-8 bytes of their originalPath:
+ *     int originalOffset, int originalLength, int lavendelizedOffset, int lavendelizedLength, 16 bytes md5
+ *   string table with utf-8 encoded paths; offsets are relative to its start, equal lavendelized paths are stored once
+ *
+ * Mapped buffers are never unmapped, and truncating a file while it is mapped crashes readers with SIGBUS. So a new version
+ * must be written to a different file and moved over the old one - as save does - never overwritten in place.
+ */
+public final class MappedIndex implements ReadOnlyIndex {
+    public static final int MAGIC = 0x4c564958; // LVIX
+    public static final int VERSION = 1;
+
+    private static final int HEADER = 12;
+    private static final int MD5_LENGTH = 16;
+    private static final int ENTRY = 16 + MD5_LENGTH;
+
+    /** Writes a tmp file and moves it to dest, so a process that has mapped dest keeps its version */
+    public static void save(Index index, FileNode dest) throws IOException {
+        FileNode tmp;
+
+        tmp = Util.newTmpFile(dest.getParent());
+        try {
+            try (OutputStream out = tmp.newOutputStream()) {
+                save(index, out);
+            }
+            tmp.move(dest, true);
+        } catch (IOException | RuntimeException e) {
+            tmp.deleteFileOpt();
+            throw e;
+        }
+    }
+
+    /** dest will not be closed */
+    public static void save(Index index, OutputStream dest) throws IOException {
+        List<Entry> entries;
+        ByteArrayOutputStream strings;
+        Map<String, Integer> lavendelizedOffsets;
+        DataOutputStream out;
+        Integer offset;
+
+        entries = new ArrayList<>(index.size());
+        for (Label label : index) {
+            entries.add(new Entry(label));
+        }
+        entries.sort((left, right) -> Arrays.compareUnsigned(left.original, right.original));
+        strings = new ByteArrayOutputStream();
+        lavendelizedOffsets = new HashMap<>();
+        for (Entry entry : entries) {
+            entry.originalOffset = strings.size();
+            strings.write(entry.original);
+            offset = lavendelizedOffsets.get(entry.label.getLavendelizedPath());
+            if (offset == null) {
+                offset = strings.size();
+                strings.write(entry.lavendelized);
+                lavendelizedOffsets.put(entry.label.getLavendelizedPath(), offset);
+            }
+            entry.lavendelizedOffset = offset;
+        }
+        out = new DataOutputStream(new BufferedOutputStream(dest));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeInt(entry.originalOffset);
+            out.writeInt(entry.original.length);
+            out.writeInt(entry.lavendelizedOffset);
+            out.writeInt(entry.lavendelized.length);
+            out.write(entry.label.md5());
+        }
+        strings.writeTo(out);
+        out.flush();
+    }
+
+    private static class Entry {
+        public final Label label;
+        public final byte[] original;
+        public final byte[] lavendelized;
+        public int originalOffset;
+        public int lavendelizedOffset;
+
+        Entry(Label label) {
+            if (label.md5().length != MD5_LENGTH) {
+                throw new IllegalArgumentException("md5 expected: " + label);
+            }
+            this.label = label;
+            this.original = label.getOriginalPath().getBytes(StandardCharsets.UTF_8);
+            this.lavendelized = label.getLavendelizedPath().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public static MappedIndex open(Path file) throws IOException {
+        ByteBuffer buffer;
+        long size;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + ": binary index too large: " + size);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return new MappedIndex(file.toString(), buffer);
+    }
+
+    //--
+
+    private final ByteBuffer buffer;
+    private final int count;
+
+    /** start of the string table */
+    private final int strings;
+
+    public MappedIndex(String name, ByteBuffer buffer) throws IOException {
+        long end;
+        int pos;
+
+        if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC) {
+            throw new IOException(name + ": not a binary index");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(name + ": unsupported binary index version: " + buffer.getInt(4));
+        }
+        this.buffer = buffer;
+        this.count = buffer.getInt(8);
+        end = HEADER + (long) count * ENTRY;
+        if (count < 0 || end > buffer.limit()) {
+            throw new IOException(name + ": binary index truncated");
+        }
+        this.strings = (int) end;
+        for (int i = 0; i < count; i++) {
+            pos = HEADER + i * ENTRY;
+            checkString(name, buffer.getInt(pos), buffer.getInt(pos + 4));
+            checkString(name, buffer.getInt(pos + 8), buffer.getInt(pos + 12));
+        }
+    }
+
+    private void checkString(String name, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || (long) strings + offset + length > buffer.limit()) {
+            throw new IOException(name + ": binary index corrupted");
+        }
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public int find(String originalPath) {
+        int low;
+        int high;
+        int mid;
+        int pos;
+        int cmp;
+
+        low = 0;
+        high = count - 1;
+        while (low <= high) {
+            mid = (low + high) >>> 1;
+            pos = HEADER + mid * ENTRY;
+            cmp = compare(strings + buffer.getInt(pos), buffer.getInt(pos + 4), originalPath);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Compares the utf-8 encoded string at the specified position with str, by code points. */
+    private int compare(int start, int length, String str) {
+        int i;
+        int end;
+        int j;
+        int max;
+        int b;
+        int left;
+        int right;
+
+        i = start;
+        end = start + length;
+        j = 0;
+        max = str.length();
+        while (i < end && j < max) {
+            b = buffer.get(i) & 0xff;
+            if (b < 0x80) {
+                left = b;
+                i += 1;
+            } else if (b < 0xe0) {
+                left = ((b & 0x1f) << 6) | (buffer.get(i + 1) & 0x3f);
+                i += 2;
+            } else if (b < 0xf0) {
+                left = ((b & 0x0f) << 12) | ((buffer.get(i + 1) & 0x3f) << 6) | (buffer.get(i + 2) & 0x3f);
+                i += 3;
+            } else {
+                left = ((b & 0x07) << 18) | ((buffer.get(i + 1) & 0x3f) << 12) | ((buffer.get(i + 2) & 0x3f) << 6) | (buffer.get(i + 3) & 0x3f);
+                i += 4;
+            }
+            right = str.codePointAt(j);
+            j += Character.charCount(right);
+            if (left != right) {
+                return left < right ? -1 : 1;
+            }
+        }
+        if (i < end) {
+            return 1;
+        }
+        return j < max ? -1 : 0;
+    }
+
+    @Override
+    public Label label(int entry) {
+        int pos;
+        byte[] md5;
+
+        pos = HEADER + entry * ENTRY;
+        md5 = new byte[MD5_LENGTH];
+        bytes(pos + 16, md5);
+        return new Label(string(buffer.getInt(pos), buffer.getInt(pos + 4)), string(buffer.getInt(pos + 8), buffer.getInt(pos + 12)), md5);
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes;
+
+        bytes = new byte[length];
+        bytes(strings + offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void bytes(int start, byte[] dest) {
+        for (int i = 0; i < dest.length; i++) {
+            dest[i] = buffer.get(start + i);
+        }
+    }
+}
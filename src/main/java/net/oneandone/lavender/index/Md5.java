@@ -0,0 +1,128 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * MD5 hashing without a shared lock. An instance wraps its own MessageDigest and is not thread-safe; the static methods
+ * borrow instances from a striped pool, where the stripe is selected by the current thread, so threads hash in parallel.
+ * Not a ThreadLocal: the filter hashes in container threads, which would keep instances - and thus the webapp class
+ * loader - after undeploy.
+ */
+public final class Md5 {
+    public static final int LENGTH = 16;
+
+    private static final StripedPool<Md5> POOL = new StripedPool<>(StripedPool.defaultPoolStripes());
+
+    /** @return md5 sum of all bytes */
+    public static byte[] md5(byte... data) {
+        return md5(data, 0, data.length);
+    }
+
+    /** @return md5 sum of the specified range */
+    public static byte[] md5(byte[] data, int off, int len) {
+        Md5 md5;
+
+        md5 = borrow();
+        try {
+            md5.update(data, off, len);
+            return md5.finish();
+        } finally {
+            giveBack(md5);
+        }
+    }
+
+    /** @return pooled instance if available, otherwise a new one; pass it to giveBack when done */
+    public static Md5 borrow() {
+        Md5 result;
+
+        result = POOL.borrow();
+        return result == null ? new Md5() : result;
+    }
+
+    /** Resets md5 for the next user; if the stripe is occupied, the instance is left to the garbage collector. */
+    public static void giveBack(Md5 md5) {
+        md5.reset();
+        POOL.giveBack(md5);
+    }
+
+    //--
+
+    private final MessageDigest digest;
+
+    /** For update(InputStream); null if not used yet */
+    private byte[] chunk;
+
+    public Md5() {
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Md5 update(byte[] data, int off, int len) {
+        digest.update(data, off, len);
+        return this;
+    }
+
+    /** Consumes the remaining bytes of data */
+    public Md5 update(ByteBuffer data) {
+        digest.update(data);
+        return this;
+    }
+
+    /** Reads src to the end; does not close it */
+    public Md5 update(InputStream src) throws IOException {
+        int count;
+
+        if (chunk == null) {
+            chunk = new byte[8192];
+        }
+        while ((count = src.read(chunk)) != -1) {
+            digest.update(chunk, 0, count);
+        }
+        return this;
+    }
+
+    /** Stores the md5 sum in dest[off] to dest[off + LENGTH - 1] and resets this instance */
+    public void finish(byte[] dest, int off) {
+        try {
+            digest.digest(dest, off, LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException("no room for md5 sum at " + off + " in " + dest.length + " bytes", e);
+        }
+    }
+
+    /** @return md5 sum; resets this instance */
+    public byte[] finish() {
+        byte[] result;
+
+        result = new byte[LENGTH];
+        finish(result, 0);
+        return result;
+    }
+
+    public void reset() {
+        digest.reset();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free pool for recycling instances: a fixed number of slots, where the slot is selected by the current thread,
+ * so concurrent threads rarely compete for the same one. Holds at most one instance per slot. Thread-safe.
+ */
+public final class StripedPool<T> {
+    /** @return twice the number of cpus */
+    public static int defaultPoolStripes() {
+        return 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    private final AtomicReferenceArray<T> slots;
+    private final int stripeMask;
+
+    /** @param stripes number of slots, rounded up to a power of 2 */
+    public StripedPool(int stripes) {
+        int size;
+
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("invalid number of stripes: " + stripes);
+        }
+        size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size = size << 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.stripeMask = size - 1;
+    }
+
+    /** @return instance of the current thread's slot, null if it is empty */
+    public T borrow() {
+        return slots.getAndSet(stripe(), null);
+    }
+
+    /** @return false if the slot is occupied; instance is not pooled then, it's up to the caller to dispose it */
+    public boolean giveBack(T instance) {
+        return slots.compareAndSet(stripe(), null, instance);
+    }
+
+    /** @return number of slots */
+    public int size() {
+        return slots.length();
+    }
+
+    /** @return number of pooled instances */
+    public int getIdle() {
+        int count;
+
+        count = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int stripe() {
+        return (int) Thread.currentThread().getId() & stripeMask;
+    }
+}
@@ -18,27 +18,17 @@ package net.oneandone.lavender.index;
 import net.oneandone.sushi.fs.MkfileException;
 import net.oneandone.sushi.fs.file.FileNode;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
 public class Util {
-    private static final MessageDigest DIGEST;
-
-    static {
-        try {
-            DIGEST = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e.getMessage());
-        }
-    }
-
-    public static synchronized byte[] md5(byte... data) {
-        return md5(data, data.length);
+    /** @deprecated use {@link Md5#md5(byte...)} */
+    @Deprecated
+    public static byte[] md5(byte... data) {
+        return Md5.md5(data);
     }
 
-    public static synchronized byte[] md5(byte[] data, int count) {
-        DIGEST.update(data, 0, count);
-        return DIGEST.digest();
+    /** @deprecated use {@link Md5#md5(byte[], int, int)} */
+    @Deprecated
+    public static byte[] md5(byte[] data, int count) {
+        return Md5.md5(data, 0, count);
     }
 
     //--
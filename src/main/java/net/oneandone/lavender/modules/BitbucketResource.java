@@ -60,6 +60,11 @@ public class BitbucketResource extends Resource {
         bitbucket.writeTo(project, repository, entry.accessPath, at, dest);
     }
 
+    @Override
+    public String getRemoteHostOpt() {
+        return bitbucket.getHostname();
+    }
+
     @Override
     public boolean isOutdated() {
         // the least expensive way I know to check for changes is to re-load changes with content ids
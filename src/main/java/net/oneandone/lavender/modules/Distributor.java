@@ -20,25 +20,65 @@ import net.oneandone.lavender.config.Docroot;
 import net.oneandone.lavender.index.Hex;
 import net.oneandone.lavender.index.Index;
 import net.oneandone.lavender.index.Label;
-import net.oneandone.lavender.index.Util;
+import net.oneandone.lavender.index.Md5;
 import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.fs.ssh.SshNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /** Receives extracted files and uploads them */
 public class Distributor {
     private static final Logger LOG = LoggerFactory.getLogger(Distributor.class);
 
+    /**
+     * Resources up to this number of bytes are kept in memory while publishing, larger ones are spilled to the cache
+     * directory. Configure with system property lavender.spillThreshold.
+     */
+    public static final int SPILL_THRESHOLD = Integer.getInteger("lavender.spillThreshold", 1024 * 1024);
+
+    /**
+     * Files for ssh hosts are uploaded in tar chunks of up to this number of files; 0 uploads every file separately.
+     * Configure with system property lavender.sshBatch.
+     */
+    public static final int BATCH_FILES = Integer.getInteger("lavender.sshBatch", 500);
+
+    /** Maximum number of bytes in a tar chunk */
+    public static final long BATCH_BYTES = 16L * 1024 * 1024;
+
     public static Distributor open(FileNode cacheroot, List<Connection> connections, Docroot docroot, String indexName) throws IOException {
+        return open(cacheroot, connections, docroot, indexName, 1);
+    }
+
+    /** @param parallel number of resources fetched, hashed and uploaded at the same time */
+    public static Distributor open(FileNode cacheroot, List<Connection> connections, Docroot docroot, String indexName, int parallel)
+            throws IOException {
         Node destroot;
         Node file;
         Map<Node, Node> targets;
@@ -60,7 +100,7 @@ public class Distributor {
                 all = loadSame(docroot.index(connection, Index.ALL_IDX), all);
             }
         }
-        return new Distributor(cacheroot, targets, all, prev);
+        return new Distributor(cacheroot, targets, all, prev, parallel);
     }
 
     private static Index loadSame(Node src, Index prev) throws IOException {
@@ -81,76 +121,227 @@ public class Distributor {
         }
     }
 
-    /** left: index location; right: docroot */
+    /** Used by write and by publish without parallelism */
     private final Buffer buffer;
     private final FileNode cacheroot;
+    /** left: index location; right: docroot */
     private final Map<Node, Node> targets;
+    /** Not modified before close, so workers read it without locking */
     private final Index all;
     private final Index prev;
     private final Index next;
+    private final int parallel;
+
+    /** Tar uploads per ssh docroot, created on demand */
+    private final ConcurrentHashMap<Node, SshBatch> batches;
+
+    /** Writer pools per docroot, created on demand, shut down by close */
+    private final ConcurrentHashMap<Node, ExecutorService> hostWriters;
+
+    /** Locks per destination path; different resources may have the same lavendelized path */
+    private final ConcurrentHashMap<String, Object> uploading;
 
     public Distributor(FileNode cacheroot, Map<Node, Node> targets, Index all, Index prev) {
-        this.buffer = new Buffer();
+        this(cacheroot, targets, all, prev, 1);
+    }
+
+    public Distributor(FileNode cacheroot, Map<Node, Node> targets, Index all, Index prev, int parallel) {
+        if (parallel < 1) {
+            throw new IllegalArgumentException("parallel: " + parallel);
+        }
         this.cacheroot = cacheroot;
+        this.buffer = newBuffer();
         this.targets = targets;
         this.all = all;
         this.prev = prev;
         this.next = new Index();
+        this.parallel = parallel;
+        this.uploading = new ConcurrentHashMap<>();
+        this.hostWriters = new ConcurrentHashMap<>();
+        this.batches = new ConcurrentHashMap<>();
     }
 
-    /** @return number of changed (updated or added) resources */
+    /**
+     * Resolves md5 sums, checks against the all index and uploads with the configured parallelism. Resources are enumerated
+     * by the calling thread, results are added to the index in enumeration order.
+     *
+     * @return number of changed (updated or added) resources
+     */
     public long publish(Module<?> module) throws IOException {
         FileNode cacheFile;
-        String path;
-        String contentId;
-        Label label;
         long count;
-        String md5str;
-        byte[] md5;
-        boolean dataBuffered;
 
-        count = 0;
         // it's not save to base the file on the simple module name even though lookup always includes the content id --
         // different modules may have the same name (webapp!), and both of them may container different files at the same path with the
         // same contentId. This happend for "vi-presender-domain-new.png"
         cacheFile = cacheroot.join("md5", ModuleProperties.urlToFilename(module.getOrigin()) + ".cache");
         try (Md5Cache cache = Md5Cache.loadOrCreate(cacheFile)) {
-            for (Resource resource : module) {
-                buffer.reset();
-                path = resource.getResourcePath();
-                md5str = resource.getMd5Opt();
-                if (md5str == null) {
-                    contentId = resource.getContentId();
-                    md5 = cache.lookup(path, contentId);
-                    if (md5 == null) {
-                        resource.writeTo(buffer);
-                        dataBuffered = true;
-                        md5 = buffer.md5();
-                        cache.add(path, contentId, md5);
-                    } else {
-                        dataBuffered = false;
+            try {
+                if (parallel == 1) {
+                    count = 0;
+                    for (Resource resource : module) {
+                        count += done(cache, process(module, cache, resource, buffer));
                     }
                 } else {
-                    md5 = Hex.decodeString(md5str);
-                    dataBuffered = false;
+                    count = publishParallel(module, cache);
                 }
-                label = module.createLabel(resource, md5);
-                if (write(label, resource, dataBuffered)) {
-                    count++;
+                flushBatches();
+            } catch (IOException | RuntimeException e) {
+                abortBatches();
+                throw e;
+            }
+        }
+        return count;
+    }
+
+    private long publishParallel(Module<?> module, Md5Cache cache) throws IOException {
+        ExecutorService workers;
+        BlockingQueue<Buffer> buffers;
+        ArrayDeque<Future<Step>> pending;
+        long count;
+
+        workers = Executors.newFixedThreadPool(parallel, r -> {
+            Thread thread = new Thread(r, "lavender-publish");
+            thread.setDaemon(true);
+            return thread;
+        });
+        buffers = new ArrayBlockingQueue<>(parallel);
+        for (int i = 0; i < parallel; i++) {
+            buffers.add(newBuffer());
+        }
+        pending = new ArrayDeque<>();
+        count = 0;
+        try {
+            for (Resource resource : module) {
+                pending.add(workers.submit(() -> {
+                    Buffer workerBuffer = buffers.take();
+
+                    try {
+                        return process(module, cache, resource, workerBuffer);
+                    } finally {
+                        buffers.add(workerBuffer);
+                    }
+                }));
+                // bounded: don't enumerate further ahead than the workers can use
+                if (pending.size() >= 4 * parallel) {
+                    count += done(cache, await(pending.remove()));
                 }
             }
+            while (!pending.isEmpty()) {
+                count += done(cache, await(pending.remove()));
+            }
+        } finally {
+            workers.shutdownNow();
         }
         return count;
     }
 
+    private static <T> T await(Future<T> future) throws IOException {
+        Throwable cause;
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("publish interrupted");
+        } catch (ExecutionException e) {
+            cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    private Buffer newBuffer() {
+        return new Buffer(SPILL_THRESHOLD, cacheroot.join("spill").toPath());
+    }
+
+    /** Result of processing one resource */
+    private static class Step {
+        public final Label label;
+        /** null if the md5 sum was not computed */
+        public final String contentIdOpt;
+        public final boolean changed;
+
+        Step(Label label, String contentIdOpt, boolean changed) {
+            this.label = label;
+            this.contentIdOpt = contentIdOpt;
+            this.changed = changed;
+        }
+    }
+
+    /** Thread-safe as long as every thread uses its own buffer */
+    private Step process(Module<?> module, Md5Cache cache, Resource resource, Buffer buffer) throws IOException {
+        String path;
+        String contentId;
+        String computed;
+        Label label;
+        String md5str;
+        byte[] md5;
+        boolean dataBuffered;
+
+        buffer.reset();
+        try {
+            path = resource.getResourcePath();
+            md5str = resource.getMd5Opt();
+            computed = null;
+            if (md5str == null) {
+                contentId = resource.getContentId();
+                synchronized (cache) {
+                    md5 = cache.lookup(path, contentId);
+                }
+                if (md5 == null) {
+                    resource.writeTo(buffer);
+                    dataBuffered = true;
+                    md5 = buffer.md5();
+                    computed = contentId;
+                } else {
+                    dataBuffered = false;
+                }
+            } else {
+                md5 = Hex.decodeString(md5str);
+                dataBuffered = false;
+            }
+            label = module.createLabel(resource, md5);
+            return new Step(label, computed, upload(label, resource, dataBuffered, buffer));
+        } finally {
+            // don't keep spill files around
+            buffer.reset();
+        }
+    }
+
+    /** Called in enumeration order */
+    private int done(Md5Cache cache, Step step) {
+        if (step.contentIdOpt != null) {
+            synchronized (cache) {
+                cache.add(step.label.getOriginalPath(), step.contentIdOpt, step.label.md5());
+            }
+        }
+        next.add(step.label);
+        return step.changed ? 1 : 0;
+    }
+
     /** @return true if resource was written, false if it's already in the all index */
     public boolean write(Label label, Resource resource, boolean dataBuffered) throws IOException {
-        Node dest;
+        next.add(label);
+        try {
+            return upload(label, resource, dataBuffered, buffer);
+        } finally {
+            buffer.reset();
+        }
+    }
+
+    /** Thread-safe as long as every thread uses its own buffer */
+    private boolean upload(Label label, Resource resource, boolean dataBuffered, Buffer buffer) throws IOException {
         String destPath;
         Label allLabel;
-        Node tmp;
 
-        next.add(label);
         destPath = label.getLavendelizedPath();
         allLabel = all.lookup(destPath);
         if (allLabel != null && Arrays.equals(allLabel.md5(), label.md5())) {
@@ -166,30 +357,144 @@ public class Distributor {
                 LOG.debug("U " + destPath);
             }
         }
-        for (Node destroot : targets.values()) {
-            dest = destroot.join(destPath);
-            if (allLabel == null) {
-                dest.getParent().mkdirsOpt();
-                try (OutputStream out = dest.newOutputStream()) {
-                    buffer.writeTo(out);
+        // another worker might write the same file; wait for it, then write again like a sequential publish
+        synchronized (uploading.computeIfAbsent(destPath, key -> new Object())) {
+            if (targets.size() == 1) {
+                for (Node destroot : targets.values()) {
+                    upload(destroot, destPath, allLabel != null, buffer);
                 }
             } else {
-                tmp = dest.getParent().join(".atomicUpdate"); // because apache is happily serving files while we update them ...
-                try (OutputStream out = tmp.newOutputStream()) {
-                    buffer.writeTo(out);
-                }
-                tmp.move(dest, true);
+                fanOut(destPath, allLabel != null, buffer);
             }
         }
         return true;
     }
 
+    /** Uploads to all hosts at the same time, returns when all of them are done. */
+    private void fanOut(String destPath, boolean update, Buffer buffer) throws IOException {
+        List<Future<?>> futures;
+
+        futures = new ArrayList<>(targets.size());
+        for (Node destroot : targets.values()) {
+            futures.add(hostWriter(destroot).submit(() -> {
+                upload(destroot, destPath, update, buffer);
+                return null;
+            }));
+        }
+        // wait for all hosts, even after a failure: the buffer must not be reused while it's written
+        awaitAll(futures, destPath + ": upload failed");
+    }
+
+    /** Waits for all futures; throws the first failure, if any, with the others suppressed */
+    private static void awaitAll(List<Future<?>> futures, String message) throws IOException {
+        IOException failure;
+
+        failure = null;
+        for (Future<?> future : futures) {
+            try {
+                await(future);
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(message, e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Completes the pending chunks of all ssh hosts at the same time */
+    private void flushBatches() throws IOException {
+        List<Future<?>> futures;
+
+        futures = new ArrayList<>(batches.size());
+        for (Map.Entry<Node, SshBatch> entry : batches.entrySet()) {
+            futures.add(hostWriter(entry.getKey()).submit(() -> {
+                entry.getValue().flush();
+                return null;
+            }));
+        }
+        awaitAll(futures, "upload failed");
+    }
+
+    private void abortBatches() {
+        for (SshBatch batch : batches.values()) {
+            batch.abort();
+        }
+    }
+
+    /** One writer pool per host; publish workers wait for their uploads, so at most parallel uploads are queued per host */
+    private ExecutorService hostWriter(Node destroot) {
+        return hostWriters.computeIfAbsent(destroot, key -> {
+            ThreadPoolExecutor executor;
+
+            executor = new ThreadPoolExecutor(parallel, parallel, 10, TimeUnit.SECONDS, new ArrayBlockingQueue<>(parallel), r -> {
+                Thread thread = new Thread(r, "lavender-upload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        });
+    }
+
+    private void upload(Node destroot, String destPath, boolean update, Buffer buffer) throws IOException {
+        SshBatch batch;
+        Node dest;
+        Node tmp;
+
+        batch = batchOpt(destroot, destPath);
+        if (batch != null) {
+            batch.add(destPath, update, buffer);
+            return;
+        }
+        dest = destroot.join(destPath);
+        if (update) {
+            // because apache is happily serving files while we update them; one tmp file per destination for parallel workers
+            tmp = dest.getParent().join(".atomicUpdate-" + dest.getName());
+            buffer.copyTo(tmp);
+            tmp.move(dest, true);
+        } else {
+            mkdirsOpt(dest.getParent());
+            buffer.copyTo(dest);
+        }
+    }
+
+    /** @return null to upload the file separately: batching is disabled, the docroot is local, or the path is too long for tar */
+    private SshBatch batchOpt(Node destroot, String destPath) {
+        if (BATCH_FILES <= 0 || !(destroot instanceof SshNode) || !SshBatch.accepts(destPath)) {
+            return null;
+        }
+        return batches.computeIfAbsent(destroot, key -> new SshBatch((SshNode) key, BATCH_FILES, BATCH_BYTES));
+    }
+
+    /** Parallel workers may create the same directory */
+    private static void mkdirsOpt(Node directory) throws IOException {
+        try {
+            directory.mkdirsOpt();
+        } catch (IOException e) {
+            if (!directory.isDirectory()) {
+                throw e;
+            }
+        }
+    }
 
     /** Writes modified indexes; return next index */
     public Index close() throws IOException {
         Node directory;
         Node index;
 
+        try {
+            flushBatches();
+        } finally {
+            for (ExecutorService writer : hostWriters.values()) {
+                writer.shutdown();
+            }
+        }
+
         for (Label label : prev) {
             if (!all.removeReferenceOpt(label.getLavendelizedPath())) {
                 throw new IOException("not found in all.idx: " + label.getLavendelizedPath());
@@ -210,29 +515,149 @@ public class Distributor {
 
     //--
 
-    public static class Buffer extends ByteArrayOutputStream {
-        private final int initialBytes;
+    /**
+     * Receives the content of a resource and computes its md5 sum while streaming, like a DigestOutputStream. Keeps up
+     * to a fixed number of bytes in an array that's allocated once; larger content spills to a temp file. Written by
+     * one thread; once written, several threads can copy it at the same time.
+     */
+    public static class Buffer extends OutputStream {
+        private final byte[] memory;
+        /** Null for the default temp directory */
+        private final Path spillDirectory;
+        private final Md5 digest;
+        private final byte[] single;
+
+        /** Bytes in memory, only valid if not spilled */
+        private int count;
+        private long size;
+        /** Null if not computed yet */
+        private byte[] md5;
+
+        /** Null if not spilled */
+        private Path spillFile;
+        /** Null if not spilled */
+        private FileChannel spill;
 
         public Buffer() {
-            this(512 * 1024);
+            this(512 * 1024, null);
         }
 
-        public Buffer(int initialBytes) {
-            super(initialBytes);
+        /** @param threshold content above this number of bytes is spilled to a temp file in spillDirectory */
+        public Buffer(int threshold, Path spillDirectory) {
+            this.memory = new byte[threshold];
+            this.spillDirectory = spillDirectory;
+            this.digest = new Md5();
+            this.single = new byte[1];
+        }
 
-            this.initialBytes = initialBytes;
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
         }
 
         @Override
-        public void reset() {
-            super.reset();
-            if (buf.length != initialBytes) {
-                buf = new byte[initialBytes];
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (md5 != null) {
+                throw new IllegalStateException("md5 already computed");
+            }
+            digest.update(b, off, len);
+            if (spill == null && len <= memory.length - count) {
+                System.arraycopy(b, off, memory, count, len);
+                count += len;
+            } else {
+                if (spill == null) {
+                    if (spillDirectory != null) {
+                        Files.createDirectories(spillDirectory);
+                        spillFile = Files.createTempFile(spillDirectory, "spill", ".tmp");
+                    } else {
+                        spillFile = Files.createTempFile("lavender-spill", ".tmp");
+                    }
+                    spill = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    writeFully(memory, 0, count);
+                }
+                writeFully(b, off, len);
+            }
+            size += len;
+        }
+
+        private void writeFully(byte[] b, int off, int len) throws IOException {
+            ByteBuffer src;
+
+            src = ByteBuffer.wrap(b, off, len);
+            while (src.hasRemaining()) {
+                spill.write(src);
+            }
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public boolean isSpilled() {
+            return spill != null;
+        }
+
+        /** Not synchronized, so several threads can copy the same buffer at the same time */
+        public void copyTo(OutputStream dest) throws IOException {
+            if (spill == null) {
+                dest.write(memory, 0, count);
+            } else {
+                transferTo(Channels.newChannel(dest));
+            }
+        }
+
+        /** Writes the content to dest; spilled content is copied file-to-file by the channel if dest is a local file */
+        public void copyTo(Node dest) throws IOException {
+            if (spill != null && dest instanceof FileNode) {
+                try (FileChannel out = FileChannel.open(((FileNode) dest).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    transferTo(out);
+                }
+            } else {
+                try (OutputStream out = dest.newOutputStream()) {
+                    copyTo(out);
+                }
+            }
+        }
+
+        /** Uses positional transfers, so it does not interfere with other threads transferring the same file */
+        private void transferTo(WritableByteChannel dest) throws IOException {
+            long position;
+
+            position = 0;
+            while (position < size) {
+                position += spill.transferTo(position, size - position, dest);
             }
         }
 
         public byte[] md5() {
-            return Util.md5(buf, count);
+            if (md5 == null) {
+                md5 = digest.finish();
+            }
+            return md5;
+        }
+
+        /** Empties the buffer and deletes the spill file, if any */
+        public void reset() throws IOException {
+            count = 0;
+            size = 0;
+            md5 = null;
+            digest.reset();
+            if (spill != null) {
+                try {
+                    spill.close();
+                } finally {
+                    spill = null;
+                    Files.deleteIfExists(spillFile);
+                    spillFile = null;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reset();
         }
     }
 }
@@ -52,6 +52,11 @@ public class IndexedResource extends Resource {
         scmRoot.writeTo(accessPath, dest);
     }
 
+    @Override
+    public String getRemoteHostOpt() {
+        return scmRoot.getHostname();
+    }
+
     @Override
     public boolean isOutdated() {
         return false; // indexed resources are never out-dated
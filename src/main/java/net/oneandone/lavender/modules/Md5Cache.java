@@ -16,29 +16,50 @@
 package net.oneandone.lavender.modules;
 
 import net.oneandone.lavender.index.Hex;
+import net.oneandone.lavender.index.Md5;
 import net.oneandone.lavender.index.Util;
 import net.oneandone.sushi.fs.file.FileNode;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
 
-/** needed to lavendelize resourcepath -&gt;  targetpath */
+/**
+ * needed to lavendelize resourcepath -&gt;  targetpath
+ *
+ * The file is a header followed by a log of records (payload length, payload, crc32 of the payload); the payload is
+ * path, content id and md5. Later records for a path replace earlier ones. It's memory-mapped on load; close appends
+ * the records added since, or compacts the file (write a tmp file, then move it) if the log has grown too much, or if
+ * it's damaged or in the former text format. Not thread-safe.
+ */
 public class Md5Cache implements AutoCloseable {
+    private static final int MAGIC = 0x4c4d4435; // LMD5
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+
+    /** compact if the log has more than twice the number of entries plus this */
+    private static final int COMPACT_SLACK = 1000;
+
     public static Md5Cache loadOrCreate(FileNode file) throws IOException {
         Md5Cache result;
 
         result = new Md5Cache(file);
         if (file.exists()) {
-            for (String line : file.readLines()) {
-                result.add(Entry.parse(line));
-            }
+            result.load();
         }
         return result;
     }
 
     private static class Entry {
+        /** Former text format */
         public static Entry parse(String str) {
             int idx;
             int prev;
@@ -72,51 +93,115 @@ public class Md5Cache implements AutoCloseable {
     }
 
     private final FileNode file;
-    private final List<Entry> entries;
-    private boolean modified;
+    private final Map<String, Entry> entries;
+
+    /** added since load or save, in order */
+    private final List<Entry> added;
+
+    /** number of records in the file */
+    private int records;
+
+    /** true if the file is in binary format and was read to the end without errors */
+    private boolean clean;
 
     public Md5Cache(FileNode file) {
         this.file = file;
-        this.entries = new ArrayList<>();
-        this.modified = false;
-    }
-
-    public void add(String path, String contentId, byte[] md5) {
-        add(new Entry(path, contentId, md5));
+        this.entries = new HashMap<>();
+        this.added = new ArrayList<>();
+        this.records = 0;
+        this.clean = false;
     }
 
-    public void add(Entry entry) {
-        int idx;
+    private void load() throws IOException {
+        ByteBuffer mapped;
+        long size;
 
-        idx = indexOf(entry.path);
-        if (idx != -1) {
-            entries.remove(idx);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            size = channel.size();
+            if (size >= HEADER) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (mapped.getInt(0) == MAGIC && mapped.getInt(4) == VERSION) {
+                    loadBinary(mapped);
+                    return;
+                }
+            }
+        }
+        for (String line : file.readLines()) {
+            put(Entry.parse(line));
         }
-        entries.add(entry);
-        modified = true;
     }
 
-    private int indexOf(String path) {
-        for (int i = 0, max = entries.size(); i < max; i++) {
-            if (entries.get(i).path.equals(path)) {
-                return i;
+    private void loadBinary(ByteBuffer mapped) {
+        CRC32 crc;
+        int length;
+        ByteBuffer payload;
+
+        crc = new CRC32();
+        mapped.position(HEADER);
+        while (mapped.remaining() >= 4) {
+            length = mapped.getInt();
+            if (length < 0 || mapped.remaining() < length + 4) {
+                // truncated by a process that died while appending
+                return;
+            }
+            payload = mapped.slice();
+            payload.limit(length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            mapped.position(mapped.position() + length);
+            if ((int) crc.getValue() != mapped.getInt()) {
+                return;
             }
+            put(new Entry(string(payload), string(payload), md5(payload)));
+            records++;
         }
-        return -1;
+        clean = !mapped.hasRemaining();
+    }
+
+    private static String string(ByteBuffer src) {
+        byte[] bytes;
+
+        bytes = new byte[src.getShort() & 0xffff];
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] md5(ByteBuffer src) {
+        byte[] result;
+
+        result = new byte[Md5.LENGTH];
+        src.get(result);
+        return result;
+    }
+
+    private void put(Entry entry) {
+        entries.put(entry.path, entry);
+    }
+
+    public void add(String path, String contentId, byte[] md5) {
+        Entry entry;
+
+        entry = new Entry(path, contentId, md5);
+        put(entry);
+        added.add(entry);
     }
 
     public byte[] lookup(String path, String contentId) {
-        for (Entry entry : entries) {
-            if (entry.path.equals(path) && entry.contentId.equals(contentId)) {
-                return entry.md5;
-            }
-        }
-        return null;
+        Entry entry;
+
+        entry = entries.get(path);
+        return entry != null && entry.contentId.equals(contentId) ? entry.md5 : null;
     }
 
+    public int size() {
+        return entries.size();
+    }
+
+    /** Writes all entries to a tmp file and moves it to the cache file */
     public void save() throws IOException {
         FileNode parent;
         FileNode tmp;
+        ByteBuffer buffer;
 
         file.getParent().mkdirsOpt();
         // first write to a temp file, then move it (which is atomic) because
@@ -124,20 +209,95 @@ public class Md5Cache implements AutoCloseable {
         // * works for multiple users as long as the cache directory has the proper permissions
         parent = file.getParent();
         tmp = Util.newTmpFile(parent);
-        try (Writer writer = tmp.newWriter()) {
-            for (Entry entry : entries) {
-                writer.write(entry.toString());
-                writer.write(SvnEntry.LF);
-            }
+        buffer = encode(entries.values(), true);
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, buffer);
         }
         tmp.move(file, true);
-        modified = false;
+        records = entries.size();
+        clean = true;
+        added.clear();
+    }
+
+    /**
+     * Appends the added records to the cache file with a single write. Another process that moves a compacted file into
+     * place at the same time may hide these records; that costs a re-computation, not a wrong md5.
+     */
+    private void append() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writeFully(channel, encode(added, false));
+        }
+        records += added.size();
+        added.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer encode(Iterable<Entry> list, boolean header) {
+        List<byte[]> strings;
+        int size;
+        ByteBuffer result;
+        CRC32 crc;
+        int start;
+        byte[] path;
+        byte[] contentId;
+        int i;
+
+        strings = new ArrayList<>();
+        size = header ? HEADER : 0;
+        for (Entry entry : list) {
+            path = entry.path.getBytes(StandardCharsets.UTF_8);
+            contentId = entry.contentId.getBytes(StandardCharsets.UTF_8);
+            if (path.length > 0xffff || contentId.length > 0xffff) {
+                throw new IllegalArgumentException("path or content id too long: " + entry.path);
+            }
+            strings.add(path);
+            strings.add(contentId);
+            size += 4 + 2 + path.length + 2 + contentId.length + Md5.LENGTH + 4;
+        }
+        result = ByteBuffer.allocate(size);
+        if (header) {
+            result.putInt(MAGIC);
+            result.putInt(VERSION);
+        }
+        crc = new CRC32();
+        i = 0;
+        for (Entry entry : list) {
+            path = strings.get(i++);
+            contentId = strings.get(i++);
+            result.putInt(2 + path.length + 2 + contentId.length + Md5.LENGTH);
+            start = result.position();
+            result.putShort((short) path.length);
+            result.put(path);
+            result.putShort((short) contentId.length);
+            result.put(contentId);
+            result.put(entry.md5);
+            crc.reset();
+            crc.update(result.array(), start, result.position() - start);
+            result.putInt((int) crc.getValue());
+        }
+        result.flip();
+        return result;
     }
 
     @Override
     public void close() throws IOException {
-        if (modified) {
+        if (added.isEmpty() && (clean || !file.exists())) {
+            return;
+        }
+        if (!clean || records + added.size() > 2 * entries.size() + COMPACT_SLACK) {
             save();
+        } else {
+            try {
+                append();
+            } catch (NoSuchFileException e) {
+                // removed by another process
+                save();
+            }
         }
     }
 }
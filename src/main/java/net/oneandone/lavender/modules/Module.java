@@ -51,10 +51,16 @@ public abstract class Module<E> implements Iterable<Resource> {
 
     private final Filter filter;
 
-    /** maps resource names for module specific data for this resource; this data is typically used to instantiated resources */
-    private Map<String, E> lazyEntries;
+    /**
+     * maps resource names for module specific data for this resource; this data is typically used to instantiated resources.
+     * Never modified after publication, so it can be read without locking.
+     */
+    private volatile Map<String, E> lazyEntries;
+
+    private volatile long lastScan;
 
-    private long lastScan;
+    /** Guards scanning, so concurrent callers wait for a single scan instead of starting their own */
+    private final Object scanLock = new Object();
 
     public Module(String origin, String name, ModuleProperties descriptorOpt, boolean lavendelize, String resourcePathPrefix, String targetPathPrefix, Filter filter) {
         this.origin = origin;
@@ -99,35 +105,74 @@ public abstract class Module<E> implements Iterable<Resource> {
         return lazyEntries;
     }
 
-    /** invalidate entries if it's older than 10 seconds */
+    /** invalidate entries if it's older than 5 seconds; waits for a scan in progress, which is never invalidated */
     public boolean softInvalidateEntries() {
-        if (System.currentTimeMillis() - lastScan < 5000) {
-            return false;
-        } else {
-            lazyEntries = null;
-            return true;
+        synchronized (scanLock) {
+            if (System.currentTimeMillis() - lastScan < 5000) {
+                return false;
+            } else {
+                lazyEntries = null;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Loads entries and replaces the current ones when done; concurrent readers keep using the current entries until then.
+     * If loading fails, the current entries are kept.
+     *
+     * @return number of entries
+     */
+    public int refreshEntries() throws IOException {
+        synchronized (scanLock) {
+            return scan().size();
         }
     }
 
+    /** @return milliseconds of the last successful scan, 0 if never scanned */
+    public long getLastScan() {
+        return lastScan;
+    }
+
     private Map<String, E> entries() throws IOException {
-        long started;
+        Map<String, E> result;
 
-        if (lazyEntries == null) {
-            started = System.currentTimeMillis();
-            try {
-                lazyEntries = loadEntries();
-            } catch (RuntimeException e) {
-                throw e;
-            } catch (Exception e) {
-                throw new IOException(name + " entries failed: " + e.getMessage(), e);
+        result = lazyEntries;
+        if (result != null) {
+            return result;
+        }
+        synchronized (scanLock) {
+            result = lazyEntries;
+            if (result == null) {
+                result = scan();
             }
-            lastScan = System.currentTimeMillis();
-            LOG.debug(name + ": scanned " + lazyEntries.size() + " entries in " + (lastScan - started) + "ms");
         }
-        return lazyEntries;
+        return result;
+    }
+
+    /** Caller holds scanLock */
+    private Map<String, E> scan() throws IOException {
+        Map<String, E> result;
+        long started;
+
+        started = System.currentTimeMillis();
+        try {
+            result = loadEntries();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(name + " entries failed: " + e.getMessage(), e);
+        }
+        lastScan = System.currentTimeMillis();
+        lazyEntries = result;
+        LOG.debug(name + ": scanned " + result.size() + " entries in " + (lastScan - started) + "ms");
+        return result;
     }
 
-    /** @return all entries that match the module's filter */
+    /**
+     * Called by one thread at a time. The result is shared between threads and must not be modified afterwards.
+     * @return all entries that match the module's filter
+     */
     protected abstract Map<String, E> loadEntries() throws Exception;
 
     public String matches(String resourcePath) {
@@ -19,8 +19,10 @@ import net.oneandone.sushi.fs.GetLastModifiedException;
 import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.World;
 import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.io.Buffer;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 public class NodeResource extends Resource {
@@ -68,6 +70,9 @@ public class NodeResource extends Resource {
     }
 
     public void writeTo(OutputStream dest) throws IOException {
-        node.copyFileTo(dest);
+        // not node.copyFileTo: it copies through the world's buffer, which is shared by all threads
+        try (InputStream src = node.newInputStream()) {
+            new Buffer().copy(src, dest);
+        }
     }
 }
@@ -40,6 +40,11 @@ public abstract class Resource {
 
     public abstract void writeTo(OutputStream dest) throws IOException;
 
+    /** @return host writeTo fetches the content from; null for resources that are read locally */
+    public String getRemoteHostOpt() {
+        return null;
+    }
+
     /**
      * Resources that can quickly check if a resource is out-dated should do so here; all other should return true to indicate that it
      * might be outdated
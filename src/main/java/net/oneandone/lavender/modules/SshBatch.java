@@ -0,0 +1,190 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import net.oneandone.sushi.fs.ssh.SshNode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Uploads files to an ssh docroot in chunks: every chunk is streamed as a tar archive into a single "tar -x" exec
+ * channel, instead of one sftp channel per file plus one per rename. Updated files are extracted to a tmp name and
+ * renamed after the chunk is extracted, so apache never serves a partially written file. Renames are streamed to a shell
+ * loop on stdin, one line per name, because a command line with all of them would exceed the argument size limit of
+ * the host. Files are on the host when flush returns. Thread-safe.
+ */
+public class SshBatch {
+    /** Reads pairs of lines with tmp and final name from stdin */
+    static final String RENAME_LOOP = "while IFS= read -r src && IFS= read -r dest; do mv -f -- \"$src\" \"$dest\" || exit 1; done";
+
+    private final SshNode docroot;
+    private final int maxFiles;
+    private final long maxBytes;
+
+    /** Null if no chunk is in progress */
+    private ChannelExec channel;
+    private ByteArrayOutputStream stderr;
+    private OutputStream stdin;
+    private TarWriter tar;
+    private int files;
+    private long bytes;
+
+    /** Final name to tmp name; keyed by final name because a chunk may update the same file twice, the last tar entry wins */
+    private final Map<String, String> renames;
+
+    public SshBatch(SshNode docroot, int maxFiles, long maxBytes) {
+        this.docroot = docroot;
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+        this.renames = new LinkedHashMap<>();
+    }
+
+    /** @return false if the path cannot be batched and has to be uploaded separately */
+    public static boolean accepts(String destPath) {
+        // renames are passed line by line
+        return destPath.indexOf('\n') == -1 && TarWriter.fits(tmpName(destPath));
+    }
+
+    private static String tmpName(String destPath) {
+        int idx;
+
+        // same name as for separate uploads
+        idx = destPath.lastIndexOf('/');
+        return destPath.substring(0, idx + 1) + ".atomicUpdate-" + destPath.substring(idx + 1);
+    }
+
+    public synchronized void add(String destPath, boolean update, Distributor.Buffer content) throws IOException {
+        String name;
+
+        if (channel == null) {
+            start();
+        }
+        name = update ? tmpName(destPath) : destPath;
+        content.copyTo(tar.entry(name, content.size(), System.currentTimeMillis()));
+        if (update) {
+            renames.put(destPath, name);
+        }
+        files++;
+        bytes += content.size();
+        if (files >= maxFiles || bytes >= maxBytes) {
+            flush();
+        }
+    }
+
+    private void start() throws IOException {
+        try {
+            exec("tar -x -f -");
+        } catch (JSchException e) {
+            disconnect();
+            throw new IOException(docroot + ": cannot start tar: " + e.getMessage(), e);
+        }
+        tar = new TarWriter(stdin);
+        files = 0;
+        bytes = 0;
+    }
+
+    /** Runs command in the docroot; its stdin is available in the stdin field */
+    private void exec(String command) throws JSchException, IOException {
+        channel = docroot.getRoot().createChannelExec();
+        channel.setCommand("cd " + quote("/" + docroot.getPath()) + " && " + command);
+        stderr = new ByteArrayOutputStream();
+        channel.setErrStream(stderr);
+        stdin = new BufferedOutputStream(channel.getOutputStream(), 64 * 1024);
+        channel.connect();
+    }
+
+    /** Completes the current chunk and applies its renames */
+    public synchronized void flush() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            tar.finish();
+            stdin.close();
+            await("tar -x");
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+        disconnect();
+        if (!renames.isEmpty()) {
+            try {
+                exec(RENAME_LOOP);
+                writeRenames(renames, stdin);
+                stdin.close();
+                await("mv");
+            } catch (JSchException e) {
+                throw new IOException(docroot + ": cannot rename: " + e.getMessage(), e);
+            } finally {
+                renames.clear();
+                disconnect();
+            }
+        }
+    }
+
+    /** Input for RENAME_LOOP */
+    static void writeRenames(Map<String, String> renames, OutputStream dest) throws IOException {
+        for (Map.Entry<String, String> rename : renames.entrySet()) {
+            dest.write((rename.getValue() + '\n' + rename.getKey() + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void await(String what) throws IOException {
+        int status;
+
+        while (!channel.isClosed()) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(what + " interrupted");
+            }
+        }
+        status = channel.getExitStatus();
+        if (status != 0) {
+            throw new IOException(docroot + ": " + what + " failed with exit code " + status + ": "
+                    + new String(stderr.toByteArray(), StandardCharsets.UTF_8).trim());
+        }
+    }
+
+    /** Drops the current chunk, if any */
+    public synchronized void abort() {
+        disconnect();
+        renames.clear();
+    }
+
+    private void disconnect() {
+        if (channel != null) {
+            channel.disconnect();
+            channel = null;
+        }
+        stdin = null;
+        tar = null;
+    }
+
+    private static String quote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+}
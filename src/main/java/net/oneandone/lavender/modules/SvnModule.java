@@ -28,6 +28,7 @@ import org.tmatesoft.svn.core.SVNDepth;
 import org.tmatesoft.svn.core.SVNDirEntry;
 import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.io.SVNRepository;
 import org.tmatesoft.svn.core.wc.SVNRevision;
 
 import java.io.IOException;
@@ -113,7 +114,15 @@ public class SvnModule extends Module<SvnEntry> {
     }
 
     private long getRepositoryLastModified() throws SVNException {
-        return pinnedRevision == -1 ? root.getRoot().getRepository().getLatestRevision() : pinnedRevision;
+        SVNRepository repository;
+
+        if (pinnedRevision != -1) {
+            return pinnedRevision;
+        }
+        repository = root.getRoot().getRepository();
+        synchronized (repository) { // shared with SvnResources
+            return repository.getLatestRevision();
+        }
     }
 
     /** last modified revision of the modules directory */
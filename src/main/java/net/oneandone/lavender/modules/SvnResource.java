@@ -46,7 +46,10 @@ public class SvnResource extends Resource {
 
     public boolean isOutdated() {
         try {
-            return entry.revision == module.getRoot().join(entry.accessPath).getLatestRevision();
+            // the repository connection is shared by all resources of the module and it's not thread-safe
+            synchronized (module.getRoot().getRoot().getRepository()) {
+                return entry.revision == module.getRoot().join(entry.accessPath).getLatestRevision();
+            }
         } catch (SVNException e) {
             // not found
             return true;
@@ -57,13 +60,21 @@ public class SvnResource extends Resource {
         return module.uri() + "/" + resourcePath;
     }
 
+    @Override
+    public String getRemoteHostOpt() {
+        return module.getRoot().getSvnurl().getHost();
+    }
+
     public void writeTo(OutputStream dest) throws IOException {
         SVNRepository repository;
         long loaded;
 
         repository = module.getRoot().getRoot().getRepository();
         try {
-            loaded = repository.getFile(module.getRoot().join(entry.accessPath).getPath(), accessRevision, null, dest);
+            // the repository connection is shared by all resources of the module and it's not thread-safe
+            synchronized (repository) {
+                loaded = repository.getFile(module.getRoot().join(entry.accessPath).getPath(), accessRevision, null, dest);
+            }
         } catch (SVNException e) {
             throw new IOException("svn failure: " + e.getMessage(), e);
         }
@@ -0,0 +1,168 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** Writes a ustar archive of regular files. Directories are not written, tar creates them when extracting. */
+public class TarWriter {
+    private static final int BLOCK = 512;
+
+    private final OutputStream dest;
+    private final byte[] header;
+
+    /** Bytes of the current entry that are still expected */
+    private long remaining;
+
+    public TarWriter(OutputStream dest) {
+        this.dest = dest;
+        this.header = new byte[BLOCK];
+        this.remaining = 0;
+    }
+
+    /** @return true if the name can be stored in a ustar header */
+    public static boolean fits(String name) {
+        return split(name.getBytes(StandardCharsets.UTF_8)) >= 0;
+    }
+
+    /** @return index of the slash separating prefix and name; 0 if there's no prefix; -1 if it doesn't fit */
+    private static int split(byte[] name) {
+        if (name.length <= 100) {
+            return 0;
+        }
+        for (int i = name.length - 1; i > 0; i--) {
+            if (name[i] == '/' && i <= 155 && name.length - i - 1 <= 100) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Starts a file entry; the caller writes exactly size bytes to the stream returned */
+    public OutputStream entry(String name, long size, long modified) throws IOException {
+        byte[] bytes;
+        int idx;
+        long checksum;
+
+        if (remaining != 0) {
+            throw new IllegalStateException("previous entry incomplete: " + remaining);
+        }
+        bytes = name.getBytes(StandardCharsets.UTF_8);
+        idx = split(bytes);
+        if (idx < 0) {
+            throw new IllegalArgumentException("name too long for tar: " + name);
+        }
+        Arrays.fill(header, (byte) 0);
+        if (idx == 0) {
+            System.arraycopy(bytes, 0, header, 0, bytes.length);
+        } else {
+            System.arraycopy(bytes, idx + 1, header, 0, bytes.length - idx - 1);
+            System.arraycopy(bytes, 0, header, 345, idx);
+        }
+        octal(0644, 100, 8);
+        octal(0, 108, 8);
+        octal(0, 116, 8);
+        octal(size, 124, 12);
+        octal(modified / 1000, 136, 12);
+        header[156] = '0';
+        ascii("ustar", 257);
+        ascii("00", 263);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(checksum, 148, 7);
+        header[155] = ' ';
+        dest.write(header);
+        remaining = size;
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                check(1);
+                dest.write(b);
+                written(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                check(len);
+                dest.write(b, off, len);
+                written(len);
+            }
+
+            private void check(long len) throws IOException {
+                if (len > remaining) {
+                    throw new IOException("entry size exceeded");
+                }
+            }
+
+            private void written(long len) throws IOException {
+                remaining -= len;
+                if (remaining == 0) {
+                    pad(size);
+                }
+            }
+
+            @Override
+            public void close() {
+                // the archive stream stays open
+            }
+        };
+    }
+
+    private void pad(long size) throws IOException {
+        int rest;
+
+        rest = (int) (size % BLOCK);
+        if (rest != 0) {
+            dest.write(new byte[BLOCK - rest]);
+        }
+    }
+
+    /** Writes the end-of-archive marker; does not close the underlying stream */
+    public void finish() throws IOException {
+        if (remaining != 0) {
+            throw new IllegalStateException("last entry incomplete: " + remaining);
+        }
+        dest.write(new byte[2 * BLOCK]);
+        dest.flush();
+    }
+
+    /** Zero-terminated octal number, right-aligned in the field */
+    private void octal(long value, int offset, int length) {
+        String str;
+
+        str = Long.toOctalString(value);
+        if (str.length() > length - 1) {
+            throw new IllegalArgumentException("too large for tar: " + value);
+        }
+        for (int i = 0; i < length - 1 - str.length(); i++) {
+            header[offset + i] = '0';
+        }
+        ascii(str, offset + length - 1 - str.length());
+        header[offset + length - 1] = 0;
+    }
+
+    private void ascii(String str, int offset) {
+        for (int i = 0; i < str.length(); i++) {
+            header[offset + i] = (byte) str.charAt(i);
+        }
+    }
+}
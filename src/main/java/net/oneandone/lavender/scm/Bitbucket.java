@@ -115,6 +115,10 @@ public class Bitbucket {
         this.parser = new JsonParser();
     }
 
+    public String getHostname() {
+        return api.getRoot().getHostname();
+    }
+
     public String getOrigin(String project, String repository) {
         return api.getRoot().node("", null).join(project, repository).getUri().toString();
     }
@@ -237,7 +241,8 @@ public class Bitbucket {
 
         node = api.join("projects", project, "repos", repository, "raw", path);
         node = node.withParameter("at", at);
-        buffer = node.getWorld().getBuffer();
+        // not the world's buffer: it's shared by all threads, concurrent requests would mix their content
+        buffer = new Buffer();
         try (InputStream from = node.newInputStream()) {
             bytesRead = buffer.fill(from, LFS_IDENTIFIER.length);
             if (buffer.diff(LFS_IDENTIFIER, bytesRead)) {
@@ -288,7 +293,9 @@ public class Bitbucket {
             throw new RuntimeException("Unique object for LFS link not found: " + response);
         }
         url = array.get(0).getAsJsonObject().get("actions").getAsJsonObject().get("download").getAsJsonObject().get("href").getAsString();
-        lfs.getWorld().validNode(url).copyFileTo(dest);
+        try (InputStream src = lfs.getWorld().validNode(url).newInputStream()) {
+            new Buffer().copy(src, dest);
+        }
     }
 
     private interface Collector {
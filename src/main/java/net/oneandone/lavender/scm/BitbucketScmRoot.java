@@ -54,6 +54,10 @@ public class BitbucketScmRoot extends ScmRoot {
         return bitbucket.getOrigin(project, repository);
     }
 
+    public String getHostname() {
+        return bitbucket.getHostname();
+    }
+
     public void writeTo(String path, OutputStream dest) throws IOException {
         bitbucket.writeTo(project, repository, path, at, dest);
     }
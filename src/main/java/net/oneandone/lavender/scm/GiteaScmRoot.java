@@ -18,10 +18,12 @@ package net.oneandone.lavender.scm;
 import net.oneandone.sushi.fs.World;
 import net.oneandone.sushi.fs.http.HttpNode;
 import net.oneandone.sushi.fs.http.model.HeaderList;
+import net.oneandone.sushi.io.Buffer;
 import net.oneandone.sushi.util.Strings;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 
@@ -64,6 +66,10 @@ public class GiteaScmRoot extends ScmRoot {
         return root.toString();
     }
 
+    public String getHostname() {
+        return root.getRoot().getHostname();
+    }
+
     public void writeTo(String path, OutputStream dest) throws IOException {
         HttpNode node;
 
@@ -72,7 +78,10 @@ public class GiteaScmRoot extends ScmRoot {
             node = node.withHeaders(HeaderList.of("Authorization", "token " + token));
         }
         node = node.withParameter("ref", ref);
-        node.copyFileTo(dest, 0);
+        // not node.copyFileTo: it copies through the world's buffer, which is shared by all threads
+        try (InputStream src = node.newInputStream()) {
+            new Buffer().copy(src, dest);
+        }
     }
 
     public byte[] read(String path) throws IOException {
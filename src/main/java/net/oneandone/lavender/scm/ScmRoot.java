@@ -65,6 +65,10 @@ public abstract class ScmRoot {
     }
 
     public abstract String getOrigin();
+
+    /** @return host the content is fetched from */
+    public abstract String getHostname();
+
     public abstract void writeTo(String path, OutputStream dest) throws IOException;
 
     //--
@@ -0,0 +1,100 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ContentCacheTest {
+    private static final World WORLD = World.createMinimal();
+
+    @Test
+    public void lru() {
+        ContentCache cache = new ContentCache(400);
+
+        cache.put("a", new byte[100]);
+        cache.put("b", new byte[100]);
+        cache.put("c", new byte[100]);
+        cache.lookup("a");
+        cache.put("d", new byte[100]);
+        cache.put("e", new byte[100]);
+        assertEquals(400, cache.getBytes());
+        assertNull(cache.lookup("b"));
+        assertEquals(100, cache.lookup("a").length);
+        assertEquals(4, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2.0 / 3, cache.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void tooLarge() {
+        ContentCache cache = new ContentCache(400);
+
+        cache.put("a", new byte[101]);
+        assertNull(cache.lookup("a"));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void spill() throws IOException {
+        FileNode dir = WORLD.getTemp().createTempDirectory();
+        ContentCache cache;
+
+        try {
+            dir.join("garbage").writeString("x");
+            cache = new ContentCache(200, dir.toPath(), 150);
+            assertEquals(0, dir.list().size());
+            cache.put("a", bytes(50, 1));
+            cache.put("b", bytes(50, 2));
+            cache.put("c", bytes(50, 3));
+            cache.put("d", bytes(50, 4));
+            cache.put("e", bytes(50, 5));
+            assertEquals(1, dir.list().size());
+            assertEquals(50, cache.getSpillBytes());
+
+            // promoted back to memory, evicting b
+            assertArrayEquals(bytes(50, 1), cache.lookup("a"));
+            assertEquals(1, dir.list().size());
+            assertArrayEquals(bytes(50, 2), cache.lookup("b"));
+
+            cache.put("f", bytes(50, 6));
+            cache.put("g", bytes(50, 7));
+            cache.put("h", bytes(50, 8));
+            cache.put("i", bytes(50, 9));
+            assertEquals(150, cache.getSpillBytes());
+            assertEquals(3, dir.list().size());
+        } finally {
+            dir.deleteTree();
+        }
+    }
+
+    private static byte[] bytes(int count, int value) {
+        byte[] result = new byte[count];
+
+        for (int i = 0; i < count; i++) {
+            result[i] = (byte) value;
+        }
+        return result;
+    }
+}
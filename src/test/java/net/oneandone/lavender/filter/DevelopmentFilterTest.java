@@ -0,0 +1,262 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.modules.Module;
+import net.oneandone.lavender.modules.NodeModule;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DevelopmentFilterTest {
+    private static final World WORLD = World.createMinimal();
+    private static final int FILES = 20;
+    private static final int THREADS = 16;
+    private static final int REQUESTS = 25;
+
+    private FileNode root;
+    private Map<String, byte[]> contents;
+    private AtomicInteger scans;
+    private FilterConfig config;
+    private DevelopmentFilter filter;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Random random;
+        byte[] bytes;
+        ServletContext context;
+
+        root = WORLD.getTemp().createTempDirectory();
+        random = new Random(7);
+        contents = new HashMap<>();
+        for (int i = 0; i < FILES; i++) {
+            bytes = new byte[50000 + random.nextInt(100000)];
+            random.nextBytes(bytes);
+            root.join("img" + i + ".png").writeBytes(bytes);
+            contents.put("img" + i + ".png", bytes);
+        }
+        scans = new AtomicInteger();
+        context = mock(ServletContext.class);
+        config = mock(FilterConfig.class);
+        when(config.getServletContext()).thenReturn(context);
+        filter = new DevelopmentFilter(config, Collections.singletonList(module()), null, null, null);
+    }
+
+    private Module<?> module() {
+        return new NodeModule(root, "test", null, false, "", "", WORLD.filter().includeAll()) {
+            @Override
+            protected Map<String, Node> loadEntries() throws Exception {
+                Map<String, Node> result;
+
+                scans.incrementAndGet();
+                Thread.sleep(100); // give other threads a chance to start their own scan
+                result = new HashMap<>();
+                for (FileNode file : root.list()) {
+                    result.put(file.getName(), file);
+                }
+                return result;
+            }
+        };
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        root.deleteTree();
+    }
+
+    @Test
+    public void concurrentRequests() throws Exception {
+        hammer();
+        assertEquals(1, scans.get());
+        assertEquals(THREADS * REQUESTS, fetches());
+    }
+
+    @Test
+    public void concurrentRequestsCached() throws Exception {
+        ContentCache cache;
+
+        cache = new ContentCache(1024 * 1024);
+        filter = new DevelopmentFilter(config, Collections.singletonList(module()), cache, null, null);
+        hammer();
+        assertEquals(1, scans.get());
+        assertEquals(THREADS * REQUESTS, cache.getHits() + cache.getMisses());
+        assertTrue(cache.getHits() > 0);
+        assertEquals(cache.getMisses(), fetches());
+    }
+
+    /** Default refresh settings must not hide local edits behind a background scan */
+    @Test
+    public void localChanges() throws Exception {
+        List<Module> modules;
+        byte[] changed;
+
+        modules = new ArrayList<>();
+        modules.add(module());
+        assertEquals("node", ModuleRefresher.type(modules.get(0)));
+        // requests re-scan local modules themselves; a background scan would answer them from the previous entries
+        assertNull(DevelopmentFilter.refresher(config, modules));
+        filter = new DevelopmentFilter(config, modules, null, null, null);
+        assertArrayEquals(contents.get("img0.png"), get("/img0.png"));
+
+        changed = new byte[] { 1, 2, 3 };
+        root.join("img0.png").writeBytes(changed);
+        root.join("img0.png").setLastModified(root.join("img0.png").getLastModified() + 2000);
+        assertArrayEquals(changed, get("/img0.png"));
+    }
+
+    private byte[] get(String path) throws Exception {
+        HttpServletRequest request;
+        HttpServletResponse response;
+        ByteArrayOutputStream body;
+
+        request = mock(HttpServletRequest.class);
+        when(request.getPathInfo()).thenReturn(path);
+        when(request.getMethod()).thenReturn("GET");
+        body = new ByteArrayOutputStream();
+        response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(capture(body));
+        assertTrue(filter.intercept(request, response));
+        return body.toByteArray();
+    }
+
+    @Test
+    public void asyncTimeoutBeforeFetch() throws Exception {
+        AsyncContext context;
+        HttpServletResponse response;
+        DevelopmentFilter.AsyncFetch fetch;
+
+        context = mock(AsyncContext.class);
+        response = mock(HttpServletResponse.class);
+        fetch = new DevelopmentFilter.AsyncFetch(context, response);
+        verify(context, times(1)).addListener(fetch);
+        fetch.onTimeout(null);
+        // the fetch task starts after the container gave up
+        assertFalse(fetch.claim());
+        fetch.complete();
+        verify(response, times(1)).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        verify(context, times(1)).complete();
+    }
+
+    @Test
+    public void asyncTimeoutDuringFetch() throws Exception {
+        AsyncContext context;
+        HttpServletResponse response;
+        DevelopmentFilter.AsyncFetch fetch;
+
+        context = mock(AsyncContext.class);
+        response = mock(HttpServletResponse.class);
+        fetch = new DevelopmentFilter.AsyncFetch(context, response);
+        assertTrue(fetch.claim());
+        fetch.onTimeout(null);
+        fetch.complete();
+        verify(response, times(0)).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        verify(context, times(1)).complete();
+    }
+
+    private void hammer() throws Exception {
+        List<Callable<Void>> tasks;
+        ExecutorService executor;
+        String path;
+        HttpServletRequest request;
+        HttpServletResponse response;
+        ByteArrayOutputStream body;
+        String name;
+
+        tasks = new ArrayList<>();
+        // mocks are set up in this thread, the pool threads only invoke them
+        for (int i = 0; i < THREADS * REQUESTS; i++) {
+            name = "img" + (i % FILES) + ".png";
+            path = "/" + name;
+            request = mock(HttpServletRequest.class);
+            when(request.getPathInfo()).thenReturn(path);
+            when(request.getMethod()).thenReturn("GET");
+            body = new ByteArrayOutputStream();
+            response = mock(HttpServletResponse.class);
+            when(response.getOutputStream()).thenReturn(capture(body));
+            tasks.add(task(request, response, body, contents.get(name)));
+        }
+        executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private long fetches() {
+        Map<String, Long> snapshot = new HashMap<>();
+
+        filter.getMetrics().snapshot(false, snapshot);
+        return snapshot.get("fetchNanos.node.count");
+    }
+
+    private Callable<Void> task(HttpServletRequest request, HttpServletResponse response, ByteArrayOutputStream body, byte[] expected) {
+        return () -> {
+            assertTrue(filter.intercept(request, response));
+            assertArrayEquals(expected, body.toByteArray());
+            return null;
+        };
+    }
+
+    private static ServletOutputStream capture(ByteArrayOutputStream dest) {
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                dest.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                dest.write(b, off, len);
+            }
+        };
+    }
+}
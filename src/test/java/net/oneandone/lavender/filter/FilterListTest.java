@@ -15,6 +15,14 @@
  */
 package net.oneandone.lavender.filter;
 
+import net.oneandone.lavender.index.Index;
+import net.oneandone.lavender.modules.Module;
+import net.oneandone.lavender.modules.NodeModule;
+import net.oneandone.lavender.modules.NodeResource;
+import net.oneandone.lavender.modules.Resource;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
@@ -24,15 +32,28 @@ import org.mockito.MockitoAnnotations;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -113,6 +134,105 @@ public class FilterListTest {
         verify(filterAMock, times(1)).doFilter(eq(requestMock), eq(responseMock), eq(chainMock));
     }
 
+    @Test
+    public void remoteResourceBehindProductionFilter() throws Exception {
+        World world = World.createMinimal();
+        FileNode root = world.getTemp().createTempDirectory();
+        ServletContext context = mock(ServletContext.class);
+        ProductionFilter production = new ProductionFilter();
+        DevelopmentFilter development;
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        root.join("WEB-INF").mkdir();
+        new Index().save(root.join(Lavender.LAVENDER_IDX));
+        root.join(Lavender.LAVENDER_NODES).writeLines("http://s1.cdn.net/m1/", "https://s1.cdn.net/m1/");
+        root.join("remote.txt").writeString("hello");
+        when(context.getRealPath("")).thenReturn(root.getAbsolute());
+        when(filterConfigMock.getServletContext()).thenReturn(context);
+        production.init(filterConfigMock);
+        development = new DevelopmentFilter(filterConfigMock, Collections.singletonList(remoteModule(root)), null,
+                new HostLimitedExecutor("test-fetch", 2, 1, 10), null);
+        when(request.getRequestURL()).thenReturn(new StringBuffer("http://localhost/remote.txt"));
+        when(request.getContextPath()).thenReturn("");
+        when(request.getPathInfo()).thenReturn("/remote.txt");
+        when(request.getMethod()).thenReturn("GET");
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+        try {
+            new FilterList(Arrays.asList(production, development)).doFilter(request, response, chainMock);
+
+            // the production filter closes its response when the chain returns, so the body must be complete by then
+            verify(request, times(0)).startAsync(any(), any());
+            verify(chainMock, times(0)).doFilter(any(), any());
+            assertEquals("hello", new String(body.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            production.destroy();
+            development.destroy();
+            root.deleteTree();
+        }
+    }
+
+    /** Resources claim to be fetched from a remote host */
+    private static Module<?> remoteModule(FileNode root) {
+        return new NodeModule(root, "remote", null, false, "", "", root.getWorld().filter().includeAll()) {
+            @Override
+            protected Map<String, Node> loadEntries() throws Exception {
+                Map<String, Node> result = new HashMap<>();
+
+                for (FileNode file : root.list()) {
+                    if (file.isFile()) {
+                        result.put(file.getName(), file);
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            protected Resource createResource(String resourcePath, Node file) throws IOException {
+                NodeResource local = NodeResource.forNode(file, resourcePath);
+
+                return new Resource(resourcePath) {
+                    @Override
+                    public String getMd5Opt() {
+                        return local.getMd5Opt();
+                    }
+
+                    @Override
+                    public String getContentId() {
+                        return local.getContentId();
+                    }
+
+                    @Override
+                    public String getOrigin() {
+                        return local.getOrigin();
+                    }
+
+                    @Override
+                    public void writeTo(OutputStream dest) throws IOException {
+                        local.writeTo(dest);
+                    }
+
+                    @Override
+                    public String getRemoteHostOpt() {
+                        return "scm.example.com";
+                    }
+
+                    @Override
+                    public boolean isOutdated() {
+                        return false;
+                    }
+                };
+            }
+        };
+    }
+
     @Test
     public void destroy() {
         FilterList filterList = new FilterList(filters);
@@ -0,0 +1,159 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class GzipPoolTest {
+    @Test
+    public void testSameAsGZIPOutputStream() throws IOException {
+        GzipPool pool = new GzipPool(Deflater.DEFAULT_COMPRESSION, 100, 2);
+
+        for (byte[] data : new byte[][] { new byte[0], "hello".getBytes(), data(100000) }) {
+            // compressed data and trailer; the os byte in the header differs between java versions
+            assertArrayEquals(withoutHeader(jdk(data)), withoutHeader(gzip(pool, data)));
+            assertArrayEquals(data, gunzip(gzip(pool, data)));
+        }
+    }
+
+    @Test
+    public void testLevel() throws IOException {
+        byte[] data = data(100000);
+
+        assertArrayEquals(data, gunzip(gzip(new GzipPool(Deflater.BEST_SPEED, 8192, 0), data)));
+        assertArrayEquals(data, gunzip(gzip(new GzipPool(Deflater.BEST_COMPRESSION, 8192, 0), data)));
+        assertThrows(IllegalArgumentException.class, () -> new GzipPool(10, 8192, 0));
+        assertThrows(IllegalArgumentException.class, () -> new GzipPool(1, 0, 0));
+    }
+
+    @Test
+    public void testRecycling() throws IOException {
+        GzipPool pool = new GzipPool(Deflater.DEFAULT_COMPRESSION, 8192, 1);
+        OutputStream stream;
+
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(("data " + i).getBytes(), gunzip(gzip(pool, ("data " + i).getBytes())));
+        }
+        assertEquals(1, pool.getCreated());
+        assertEquals(4, pool.getReused());
+        assertEquals(1, pool.getIdle());
+
+        stream = pool.open(new ByteArrayOutputStream());
+        assertEquals(0, pool.getIdle());
+        stream.close();
+        stream.close();
+        assertEquals(1, pool.getIdle());
+    }
+
+    @Test
+    public void testWriteAfterClose() throws IOException {
+        GzipPool pool = new GzipPool(Deflater.DEFAULT_COMPRESSION, 8192, 1);
+        OutputStream stream;
+
+        stream = pool.open(new ByteArrayOutputStream());
+        stream.close();
+        assertThrows(IOException.class, () -> stream.write(1));
+        assertThrows(IOException.class, () -> stream.write(new byte[10], 0, 10));
+        assertThrows(IOException.class, stream::flush);
+        stream.close();
+        assertEquals(1, pool.getIdle());
+        assertArrayEquals("after".getBytes(), gunzip(gzip(pool, "after".getBytes())));
+    }
+
+    @Test
+    public void testNoRecycling() throws IOException {
+        GzipPool pool = new GzipPool();
+
+        for (int i = 0; i < 3; i++) {
+            gzip(pool, "foo".getBytes());
+        }
+        assertEquals(3, pool.getCreated());
+        assertEquals(0, pool.getReused());
+        assertEquals(0, pool.getIdle());
+    }
+
+    @Test
+    public void testBytes() throws IOException {
+        GzipPool pool = new GzipPool(Deflater.DEFAULT_COMPRESSION, 8192, 1);
+        byte[] data = data(100000);
+        Map<String, Long> snapshot = new HashMap<>();
+
+        assertEquals(0, pool.getBytesIn());
+        assertEquals(gzip(pool, data).length, pool.getBytesOut());
+        assertEquals(data.length, pool.getBytesIn());
+        pool.snapshot(true, snapshot);
+        assertEquals(data.length, (long) snapshot.get("gzip.bytesIn"));
+        assertEquals(0, pool.getBytesIn());
+        assertEquals(0, pool.getBytesOut());
+    }
+
+    private static byte[] data(int size) {
+        Random random = new Random(42);
+        byte[] result = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return result;
+    }
+
+    private static byte[] gzip(GzipPool pool, byte[] data) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+        try (OutputStream dest = pool.open(result)) {
+            dest.write(data, 0, data.length / 2);
+            for (int i = data.length / 2; i < data.length; i++) {
+                dest.write(data[i]);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] withoutHeader(byte[] gzipped) {
+        return Arrays.copyOfRange(gzipped, 10, gzipped.length);
+    }
+
+    private static byte[] jdk(byte[] data) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+        try (OutputStream dest = new GZIPOutputStream(result)) {
+            dest.write(data);
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        try (GZIPInputStream src = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return src.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HostLimitedExecutorTest {
+    @Test
+    public void perHostLimit() throws InterruptedException {
+        HostLimitedExecutor executor = new HostLimitedExecutor("test", 8, 2, 100);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(20);
+
+        try {
+            for (int i = 0; i < 20; i++) {
+                executor.execute("slow", () -> {
+                    max.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    sleep(5);
+                    running.decrementAndGet();
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(2, max.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void slowHostDoesNotStarveOthers() throws InterruptedException {
+        HostLimitedExecutor executor = new HostLimitedExecutor("test", 4, 2, 100);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch fast = new CountDownLatch(1);
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                executor.execute("slow", () -> await(blocked));
+            }
+            assertEquals(10, executor.getLoad("slow"));
+            executor.execute("fast", fast::countDown);
+            assertTrue(fast.await(10, TimeUnit.SECONDS));
+        } finally {
+            blocked.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void reject() {
+        HostLimitedExecutor executor = new HostLimitedExecutor("test", 1, 1, 2);
+        CountDownLatch blocked = new CountDownLatch(1);
+
+        try {
+            executor.execute("a", () -> await(blocked));
+            executor.execute("a", () -> await(blocked));
+            executor.execute("a", () -> await(blocked));
+            assertThrows(RejectedExecutionException.class, () -> executor.execute("a", () -> { }));
+        } finally {
+            blocked.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdownRejectsPending() throws InterruptedException {
+        HostLimitedExecutor executor = new HostLimitedExecutor("test", 1, 1, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+
+        executor.execute("a", () -> {
+            started.countDown();
+            await(blocked);
+        }, rejected::incrementAndGet);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // waiting for host a
+        executor.execute("a", ran::incrementAndGet, rejected::incrementAndGet);
+        executor.execute("a", ran::incrementAndGet, rejected::incrementAndGet);
+        // waiting for a thread
+        executor.execute("b", ran::incrementAndGet, rejected::incrementAndGet);
+        executor.shutdown();
+        assertEquals(3, rejected.get());
+        assertEquals(0, ran.get());
+        assertThrows(RejectedExecutionException.class, () -> executor.execute("b", ran::incrementAndGet));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -132,6 +132,54 @@ public class LavenderTest {
         verify(developmentFilterMock, times(1)).init(any());
     }
 
+    @Test
+    public void reloadShouldRecreateProductionAndDevelopmentFilter() throws Exception {
+        givenFile(Lavender.LAVENDER_IDX);
+        givenFile(Lavender.LAVENDER_NODES, "http://s1.uicdn.net/m1", "https://s1.uicdn.net/m1");
+
+        System.setProperty("lavender.allowProdDevMixMode", "true");
+        try {
+            ProductionFilter productionFilterMock = mock(ProductionFilter.class);
+            DevelopmentFilter developmentFilterMock = mock(DevelopmentFilter.class);
+
+            Lavender lavenderFilterSpy = Mockito.spy(lavenderFilter);
+            doReturn(productionFilterMock).when(lavenderFilterSpy).createProductionFilter();
+            doReturn(developmentFilterMock).when(lavenderFilterSpy).createDevelopmentFilter();
+
+
+            lavenderFilterSpy.init(filterConfig);
+            lavenderFilterSpy.reload();
+
+
+            verify(productionFilterMock, times(2)).init(any());
+            verify(developmentFilterMock, times(2)).init(any());
+            verify(productionFilterMock, times(0)).reload();
+        } finally {
+            System.clearProperty("lavender.allowProdDevMixMode");
+        }
+    }
+
+    @Test
+    public void reloadShouldSwitchToDevelopmentFilter() throws Exception {
+        givenFile(Lavender.LAVENDER_IDX);
+        givenFile(Lavender.LAVENDER_NODES, "http://s1.uicdn.net/m1", "https://s1.uicdn.net/m1");
+
+        DevelopmentFilter developmentFilterMock = mock(DevelopmentFilter.class);
+
+        Lavender lavenderFilterSpy = Mockito.spy(lavenderFilter);
+        doReturn(developmentFilterMock).when(lavenderFilterSpy).createDevelopmentFilter();
+
+
+        lavenderFilterSpy.init(filterConfig);
+        assertTrue(lavenderFilterSpy.getProd());
+        lavenderRoot.join(Lavender.LAVENDER_IDX).deleteFile();
+        lavenderFilterSpy.reload();
+
+
+        assertFalse(lavenderFilterSpy.getProd());
+        verify(developmentFilterMock, times(1)).init(any());
+    }
+
     private void givenFile(String filename, String... lines) throws IOException {
         FileNode file = lavenderRoot.join(filename);
         file.mkfile();
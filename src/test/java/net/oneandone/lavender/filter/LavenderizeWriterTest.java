@@ -45,7 +45,7 @@ public class LavenderizeWriterTest {
         processor = mock(Processor.class);
 
         reader = new ReaderAnswer();
-        doAnswer(reader).when(processor).process(any(CharSequence.class), anyInt(), anyInt());
+        doAnswer(reader).when(processor).process(any(char[].class), anyInt(), anyInt());
 
         writer = mock(Writer.class);
 
@@ -60,7 +60,7 @@ public class LavenderizeWriterTest {
         lw.write("\u00e4\u00f6\u00fc".toCharArray());
         assertEquals("\u00e4\u00f6\u00fc", reader.toString());
 
-        verify(processor, times(1)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(1)).process(any(char[].class), anyInt(), anyInt());
 
         lw.write("abc".toCharArray());
         assertEquals("abc", reader.toString());
@@ -68,12 +68,12 @@ public class LavenderizeWriterTest {
         lw.write("xyz".toCharArray());
         assertEquals("xyz", reader.toString());
 
-        verify(processor, times(3)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(3)).process(any(char[].class), anyInt(), anyInt());
 
         lw.write("".toCharArray());
         assertEquals("", reader.toString());
 
-        verify(processor, times(4)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(4)).process(any(char[].class), anyInt(), anyInt());
     }
 
     @Test
@@ -82,13 +82,13 @@ public class LavenderizeWriterTest {
         lw.write(65);
         assertEquals("A", reader.toString());
 
-        verify(processor, times(1)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(1)).process(any(char[].class), anyInt(), anyInt());
 
         lw.write(0);
 
         lw.write(Integer.MAX_VALUE);
 
-        verify(processor, times(3)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(3)).process(any(char[].class), anyInt(), anyInt());
     }
 
     @Test
@@ -97,7 +97,7 @@ public class LavenderizeWriterTest {
         lw.write("\u00e4\u00f6\u00fc");
         assertEquals("\u00e4\u00f6\u00fc", reader.toString());
 
-        verify(processor, times(1)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(1)).process(any(char[].class), anyInt(), anyInt());
 
         lw.write("abc");
         assertEquals("abc", reader.toString());
@@ -105,11 +105,11 @@ public class LavenderizeWriterTest {
         lw.write("xyz");
         assertEquals("xyz", reader.toString());
 
-        verify(processor, times(3)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(3)).process(any(char[].class), anyInt(), anyInt());
 
         lw.write("");
 
-        verify(processor, times(4)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(4)).process(any(char[].class), anyInt(), anyInt());
     }
 
     @Test
@@ -118,7 +118,7 @@ public class LavenderizeWriterTest {
         lw.write("\u00e4\u00f6\u00fc".toCharArray(), 1, 1);
         assertEquals("\u00f6", reader.toString());
 
-        verify(processor, times(1)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(1)).process(any(char[].class), anyInt(), anyInt());
 
         lw.write("abc".toCharArray(), 0, 1);
         assertEquals("a", reader.toString());
@@ -126,11 +126,11 @@ public class LavenderizeWriterTest {
         lw.write("xyz".toCharArray(), 1, 2);
         assertEquals("yz", reader.toString());
 
-        verify(processor, times(3)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(3)).process(any(char[].class), anyInt(), anyInt());
 
         lw.write("".toCharArray(), 0, 0);
 
-        verify(processor, times(4)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(4)).process(any(char[].class), anyInt(), anyInt());
     }
 
     @Test
@@ -139,7 +139,7 @@ public class LavenderizeWriterTest {
         lw.write("\u00e4\u00f6\u00fc", 1, 1);
         assertEquals("\u00f6", reader.toString());
 
-        verify(processor, times(1)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(1)).process(any(char[].class), anyInt(), anyInt());
 
         lw.write("abc", 0, 1);
         assertEquals("a", reader.toString());
@@ -147,10 +147,10 @@ public class LavenderizeWriterTest {
         lw.write("xyz", 1, 2);
         assertEquals("yz", reader.toString());
 
-        verify(processor, times(3)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(3)).process(any(char[].class), anyInt(), anyInt());
         lw.write("", 0, 0);
 
-        verify(processor, times(4)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(4)).process(any(char[].class), anyInt(), anyInt());
     }
 
     @Test
@@ -164,7 +164,7 @@ public class LavenderizeWriterTest {
         assertEquals(1000000, reader.toString().length());
         assertEquals(sb.toString(), reader.toString());
 
-        verify(processor, times(1)).process(any(CharSequence.class), anyInt(), anyInt());
+        verify(processor, times(1)).process(any(char[].class), anyInt(), anyInt());
     }
 
     @Test
@@ -179,21 +179,36 @@ public class LavenderizeWriterTest {
         verify(processor, times(1)).close();
     }
 
+    @Test
+    public void testFlushAfterClose() throws IOException {
+        LavenderizeOutputStream los;
+
+        lw.close();
+        lw.flush();
+        verify(processor, times(0)).flush();
+
+        los = new LavenderizeOutputStream(processor, null);
+        los.close();
+        los.flush();
+        verify(processor, times(0)).flush();
+        verify(processor, times(2)).close();
+    }
+
     class ReaderAnswer implements Answer<String> {
-        private CharSequence s;
+        private char[] s;
         private int offset;
         private int length;
 
         @Override
         public String answer(InvocationOnMock invocation) {
-            s = (CharSequence) invocation.getArguments()[0];
+            s = (char[]) invocation.getArguments()[0];
             offset = (Integer) invocation.getArguments()[1];
             length = (Integer) invocation.getArguments()[2];
             return toString();
         }
 
         public String toString() {
-            return s.subSequence(offset, offset + length).toString();
+            return new String(s, offset, length);
         }
     }
 }
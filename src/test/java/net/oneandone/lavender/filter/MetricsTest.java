@@ -0,0 +1,100 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MetricsTest {
+    @Test
+    public void histogram() {
+        Histogram histogram = new Histogram();
+        Map<String, Long> snapshot = new TreeMap<>();
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i < 100 ? 10 : 5000);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(99 * 10 + 5000, histogram.getSum());
+        histogram.snapshot("h", false, snapshot);
+        assertEquals(100, (long) snapshot.get("h.count"));
+        assertEquals(5000, (long) snapshot.get("h.max"));
+        assertEquals(15, (long) snapshot.get("h.p50")); // upper bound of bucket 8..15
+        assertEquals(15, (long) snapshot.get("h.p99"));
+        histogram.record(0);
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+        snapshot.clear();
+        histogram.snapshot("h", true, snapshot);
+        assertEquals(103, (long) snapshot.get("h.count"));
+        assertEquals(Long.MAX_VALUE, (long) snapshot.get("h.max"));
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getSum());
+    }
+
+    @Test
+    public void emptyHistogram() {
+        Map<String, Long> snapshot = new TreeMap<>();
+
+        new Histogram().snapshot("h", false, snapshot);
+        assertEquals(0, (long) snapshot.get("h.count"));
+        assertEquals(0, (long) snapshot.get("h.p99"));
+    }
+
+    @Test
+    public void metrics() {
+        Metrics metrics = new Metrics();
+        Map<String, Long> snapshot = new TreeMap<>();
+
+        metrics.response("text/html");
+        metrics.response("text/html");
+        metrics.response(null);
+        metrics.processed(100, 2000);
+        metrics.processed(50, 1000);
+        metrics.fetched("bitbucket", 1000000);
+        assertEquals(3, metrics.getResponses());
+        assertEquals(150, metrics.getProcessed());
+        assertEquals(3000, metrics.getProcessorNanos());
+
+        metrics.snapshot(true, snapshot);
+        assertEquals(2, (long) snapshot.get("responses.text/html"));
+        assertEquals(1, (long) snapshot.get("responses.none"));
+        assertEquals(150, (long) snapshot.get("processed"));
+        assertEquals(2, (long) snapshot.get("processorNanos.count"));
+        assertEquals(1, (long) snapshot.get("fetchNanos.bitbucket.count"));
+        assertEquals(0, metrics.getResponses());
+        assertEquals(0, metrics.getProcessed());
+    }
+
+    @Test
+    public void boundedKeys() {
+        Metrics metrics = new Metrics();
+        Map<String, Long> snapshot = new TreeMap<>();
+
+        for (int i = 0; i < 100; i++) {
+            metrics.response("application/x-" + i);
+        }
+        assertEquals(100, metrics.getResponses());
+        metrics.snapshot(false, snapshot);
+        assertTrue(snapshot.get("responses.other") > 0);
+        assertTrue(snapshot.size() < 50, snapshot.toString());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.modules.Module;
+import net.oneandone.lavender.modules.NodeModule;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ModuleDispatcherTest {
+    private static final World WORLD = World.createMinimal();
+
+    @Test
+    public void empty() {
+        assertEquals(0, new ModuleDispatcher(Collections.emptyList()).candidates("foo").length);
+    }
+
+    @Test
+    public void order() throws IOException {
+        List<Module> modules;
+        ModuleDispatcher dispatcher;
+
+        modules = modules("a/b/", "", "a/", "ab", "a/", "x/");
+        dispatcher = new ModuleDispatcher(modules);
+        check(dispatcher, modules, "a/b/c.png", 0, 1, 2, 4);
+        check(dispatcher, modules, "a/c.png", 1, 2, 4);
+        check(dispatcher, modules, "abc.png", 1, 3);
+        check(dispatcher, modules, "a", 1);
+        check(dispatcher, modules, "", 1);
+        check(dispatcher, modules, "x/y/z", 1, 5);
+    }
+
+    @Test
+    public void sameAsLinearScan() throws IOException {
+        List<Module> modules;
+        ModuleDispatcher dispatcher;
+        List<Module> expected;
+
+        modules = modules("modules/foo/", "modules/", "modules/foo/img/", "modules/bar/", "img/", "modules/foo/", "");
+        dispatcher = new ModuleDispatcher(modules);
+        for (String path : new String[] { "modules/foo/img/a.png", "modules/foob", "modules/bar/x", "img/logo.gif", "other", "modules" }) {
+            expected = new ArrayList<>();
+            for (Module module : modules) {
+                if (path.startsWith(module.getResourcePathPrefix())) {
+                    expected.add(module);
+                }
+            }
+            assertEquals(expected, Arrays.asList(dispatcher.candidates(path)), path);
+        }
+    }
+
+    private static void check(ModuleDispatcher dispatcher, List<Module> modules, String path, int... expected) {
+        Module[] result;
+
+        result = new Module[expected.length];
+        for (int i = 0; i < expected.length; i++) {
+            result[i] = modules.get(expected[i]);
+        }
+        assertEquals(Arrays.asList(result), Arrays.asList(dispatcher.candidates(path)), path);
+    }
+
+    private static List<Module> modules(String... prefixes) throws IOException {
+        List<Module> result;
+
+        result = new ArrayList<>();
+        for (String prefix : prefixes) {
+            result.add(new NodeModule(WORLD.getTemp(), "m" + result.size(), null, false, prefix, "", WORLD.filter().includeAll()) {
+                @Override
+                protected Map<String, Node> loadEntries() {
+                    return Collections.emptyMap();
+                }
+            });
+        }
+        return result;
+    }
+}
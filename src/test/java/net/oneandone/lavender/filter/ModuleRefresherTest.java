@@ -0,0 +1,139 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.modules.Module;
+import net.oneandone.lavender.modules.NodeModule;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ModuleRefresherTest {
+    private static final World WORLD = World.createMinimal();
+
+    private final AtomicInteger scans = new AtomicInteger();
+    private final AtomicBoolean fail = new AtomicBoolean();
+
+    private Module<?> module() throws IOException {
+        return new NodeModule(WORLD.getTemp(), "test", null, false, "", "", WORLD.filter().includeAll()) {
+            @Override
+            protected Map<String, Node> loadEntries() throws Exception {
+                Map<String, Node> result;
+
+                if (fail.get()) {
+                    throw new IOException("backend down");
+                }
+                result = new HashMap<>();
+                result.put("scan" + scans.incrementAndGet(), WORLD.getTemp());
+                return result;
+            }
+        };
+    }
+
+    @Test
+    public void unusedModulesAreNotScanned() throws Exception {
+        Module<?> module = module();
+        ModuleRefresher refresher = new ModuleRefresher(Collections.<Module>singletonList(module), m -> 10, 1);
+
+        try {
+            refresher.start();
+            Thread.sleep(100);
+            assertEquals(0, scans.get());
+            assertNull(module.loadedEntries());
+
+            module.probe("scan1");
+            Thread.sleep(100);
+            assertEquals(1, scans.get());
+
+            refresher.used(module);
+            await(() -> scans.get() == 2);
+        } finally {
+            refresher.shutdown();
+        }
+    }
+
+    @Test
+    public void staleWhileRevalidate() throws Exception {
+        Module<?> module = module();
+        ModuleRefresher refresher = new ModuleRefresher(Collections.<Module>singletonList(module), m -> 10, 1);
+        Map<String, ?> first;
+
+        try {
+            assertNotNull(module.probe("scan1"));
+            first = module.loadedEntries();
+            refresher.start();
+            fail.set(true);
+            refresher.used(module);
+            await(() -> refresher.getFailures() >= 2);
+            assertSame(first, module.loadedEntries());
+
+            fail.set(false);
+            await(() -> refresher.getRefreshes() >= 1);
+            assertTrue(module.loadedEntries().containsKey("scan2"));
+            assertEquals(1, module.loadedEntries().size());
+        } finally {
+            refresher.shutdown();
+        }
+    }
+
+    @Test
+    public void refreshSoon() throws Exception {
+        Module<?> module = module();
+        ModuleRefresher refresher = new ModuleRefresher(Collections.<Module>singletonList(module), m -> 60 * 60 * 1000, 1);
+
+        try {
+            module.probe("scan1");
+            Thread.sleep(ModuleRefresher.MIN_SOON);
+            refresher.start();
+            assertTrue(refresher.refreshSoon(module));
+            await(() -> scans.get() == 2);
+            assertNotNull(module.probe("scan2"));
+        } finally {
+            refresher.shutdown();
+        }
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        Module<?> module = module();
+        ModuleRefresher refresher = new ModuleRefresher(Collections.<Module>singletonList(module), m -> 0, 1);
+
+        assertEquals(false, refresher.isRefreshed(module));
+        assertEquals(false, refresher.refreshSoon(module));
+        refresher.shutdown();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.filter.processor.LavenderProcessorFactory;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OutputCacheTest {
+    @Test
+    public void testEntry() throws IOException {
+        for (boolean offHeap : new boolean[] { false, true }) {
+            OutputCache cache = new OutputCache(10000, offHeap);
+            byte[] plain = "body { background: url(a.png) }".getBytes(StandardCharsets.UTF_8);
+            OutputCache.Entry entry = cache.put("a", plain);
+
+            assertEquals(plain.length, entry.length(false));
+            assertArrayEquals(plain, write(entry, false));
+            assertArrayEquals(plain, gunzip(write(entry, true)));
+            assertEquals(entry.size(), cache.getBytes());
+        }
+    }
+
+    @Test
+    public void testLru() throws IOException {
+        OutputCache cache = new OutputCache(4 * 1024, false);
+        byte[] body = new byte[300];
+
+        cache.put("a", body);
+        cache.put("b", body);
+        long entrySize = cache.getBytes() / 2;
+        assertNotNull(cache.lookup("a"));
+        for (int i = 0; cache.getEvictions() == 0; i++) {
+            cache.put("c" + i, body);
+        }
+        assertNull(cache.lookup("b"));
+        assertNotNull(cache.lookup("a"));
+        assertEquals(cache.size() * entrySize, cache.getBytes());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testEntryTooLarge() throws IOException {
+        OutputCache cache = new OutputCache(100, false);
+
+        cache.put("a", new byte[200]);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    //--
+
+    private final AtomicInteger rewrites = new AtomicInteger();
+
+    @Test
+    public void testResponse() throws IOException {
+        OutputCache cache = new OutputCache(100000, false);
+        String css = "a { background: url(a.png) }\nb { background: url('b.png') }\n";
+        String expected = "a { background: url(/cdn/a.png) }\nb { background: url('/cdn/b.png') }\n";
+
+        for (boolean gzip : new boolean[] { false, true }) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expected, serve(cache, css, gzip, true));
+                assertEquals(expected, serve(cache, css, gzip, false));
+            }
+        }
+        assertEquals(1, cache.size());
+        assertEquals(2, rewrites.get());
+        assertEquals("c { }" + expected, serve(cache, "c { }" + css, true, true));
+        assertEquals(2, cache.size());
+        assertEquals(4, rewrites.get());
+    }
+
+    @Test
+    public void testResponseTooLarge() throws IOException {
+        OutputCache cache = new OutputCache(400, false);
+        StringBuilder css = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+
+        for (int i = 0; i < 50; i++) {
+            css.append("a { background: url(a.png) }\n");
+            expected.append("a { background: url(/cdn/a.png) }\n");
+        }
+        for (boolean gzip : new boolean[] { false, true }) {
+            assertEquals(expected.toString(), serve(cache, css.toString(), gzip, true));
+            assertEquals(expected.toString(), serve(cache, css.toString(), gzip, false));
+        }
+        assertEquals(0, cache.size());
+        assertEquals(200, rewrites.get());
+    }
+
+    private String serve(OutputCache cache, String css, boolean gzip, boolean writer) throws IOException {
+        HttpServletResponse wrapped = mock(HttpServletResponse.class);
+        ByteArrayOutputStream dest = new ByteArrayOutputStream();
+        LavenderProcessorFactory factory = new LavenderProcessorFactory((reference, baseURI, contextPath) -> {
+            rewrites.incrementAndGet();
+            return "/cdn/" + reference;
+        });
+        LavenderizeHttpServletResponse response;
+        byte[] body;
+
+        when(wrapped.getContentType()).thenReturn("text/css;charset=UTF-8");
+        when(wrapped.getCharacterEncoding()).thenReturn("UTF-8");
+        when(wrapped.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                dest.write(b);
+            }
+        });
+        when(wrapped.getWriter()).thenReturn(new PrintWriter(dest));
+        response = new LavenderizeHttpServletResponse(wrapped, factory, URI.create("http://localhost/app/style.css"), null,
+                "/app/", gzip, null, new ResponseConfig(cache, new GzipPool(-1, 1024, 1), null, 0));
+        if (writer) {
+            response.getWriter().write(css);
+        } else {
+            response.getOutputStream().write(css.getBytes(StandardCharsets.UTF_8));
+        }
+        response.close();
+        body = dest.toByteArray();
+        return new String(gzip ? gunzip(body) : body, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] write(OutputCache.Entry entry, boolean gzip) throws IOException {
+        ByteArrayOutputStream dest = new ByteArrayOutputStream();
+
+        entry.writeTo(dest, gzip);
+        return dest.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        try (GZIPInputStream src = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return src.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.filter.processor.LavenderRewriteEngine;
+import net.oneandone.lavender.index.Hex;
+import net.oneandone.lavender.index.Index;
+import net.oneandone.lavender.index.Label;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProductionFilterTest {
+    private static final World WORLD = World.createMinimal();
+    private static final URI BASE = URI.create("http://localhost/");
+
+    private FileNode root;
+    private FilterConfig filterConfig;
+    private Map<String, String> parameters;
+    private ProductionFilter filter;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        ServletContext context;
+
+        root = WORLD.getTemp().createTempDirectory();
+        root.join("WEB-INF").mkdir();
+        root.join(Lavender.LAVENDER_NODES).writeLines("http://s1.cdn.net/m1/", "https://s1.cdn.net/m1/");
+        writeIndex("a.png");
+        parameters = new HashMap<>();
+        context = mock(ServletContext.class);
+        when(context.getRealPath("")).thenReturn(root.getAbsolute());
+        filterConfig = mock(FilterConfig.class);
+        when(filterConfig.getServletContext()).thenReturn(context);
+        when(filterConfig.getInitParameter(anyString())).thenAnswer(invocation -> parameters.get(invocation.getArgument(0)));
+        filter = new ProductionFilter();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        filter.destroy();
+        root.deleteTree();
+    }
+
+    @Test
+    public void reloadNow() throws Exception {
+        LavenderRewriteEngine before;
+
+        filter.init(filterConfig);
+        assertEquals(1, filter.getIndexSize());
+        assertEquals(-1, filter.getReloadMillis());
+        before = filter.getRewriteEngine();
+        assertEquals("http://s1.cdn.net/m1/app/a.png", before.rewrite("/a.png", BASE, "/"));
+
+        writeIndex("a.png", "b.png");
+        filter.reloadNow();
+        assertEquals(2, filter.getIndexSize());
+        assertEquals(1, filter.getReloads());
+        assertTrue(filter.getReloadMillis() >= 0);
+        assertEquals("http://s1.cdn.net/m1/app/b.png", filter.getRewriteEngine().rewrite("/b.png", BASE, "/"));
+        // requests in progress keep their snapshot
+        assertEquals("/b.png", before.rewrite("/b.png", BASE, "/"));
+        // counters continue
+        assertEquals(3, filter.getRewriteEngine().getRewrites());
+    }
+
+    @Test
+    public void failedReloadKeepsSnapshot() throws Exception {
+        filter.init(filterConfig);
+        root.join(Lavender.LAVENDER_IDX).deleteFile();
+        filter.reloadNow();
+        assertEquals(1, filter.getReloadFailures());
+        assertEquals(0, filter.getReloads());
+        assertEquals(1, filter.getIndexSize());
+    }
+
+    @Test
+    public void backgroundReload() throws Exception {
+        filter.init(filterConfig);
+        writeIndex("a.png", "b.png", "c.png");
+        filter.reload();
+        awaitReload();
+        assertEquals(3, filter.getIndexSize());
+    }
+
+    @Test
+    public void watch() throws Exception {
+        parameters.put(ProductionFilter.INDEX_WATCH, "true");
+        filter.init(filterConfig);
+        writeIndex("a.png", "b.png");
+        awaitReload();
+        assertEquals(2, filter.getIndexSize());
+    }
+
+    @Test
+    public void reloadCssCache() throws Exception {
+        parameters.put(ProductionFilter.CSS_CACHE, "100000");
+        filter.init(filterConfig);
+        assertEquals("a { background: url(http://s1.cdn.net/m1/app/a.png) }", serveCss());
+        assertEquals("a { background: url(http://s1.cdn.net/m1/app/a.png) }", serveCss());
+        assertEquals(1, filter.getCssCache().getHits());
+
+        writePrefixedIndex("v2/", "a.png");
+        filter.reloadNow();
+        assertEquals("a { background: url(http://s1.cdn.net/m1/v2/a.png) }", serveCss());
+        assertEquals(1, filter.getCssCache().getHits());
+        assertEquals(2, filter.getCssCache().getMisses());
+    }
+
+    private String serveCss() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        ByteArrayOutputStream dest = new ByteArrayOutputStream();
+
+        when(request.getRequestURL()).thenReturn(new StringBuffer("http://localhost/style.css"));
+        when(request.getContextPath()).thenReturn("");
+        when(response.getContentType()).thenReturn("text/css;charset=UTF-8");
+        when(response.getCharacterEncoding()).thenReturn("UTF-8");
+        when(response.getWriter()).thenReturn(new PrintWriter(dest));
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                dest.write(b);
+            }
+        });
+        filter.doFilter(request, response, (req, res) -> res.getWriter().write("a { background: url(/a.png) }"));
+        return new String(dest.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void awaitReload() throws InterruptedException {
+        for (int i = 0; i < 200 && filter.getReloads() == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, filter.getReloads());
+    }
+
+    private void writeIndex(String... paths) throws IOException {
+        writePrefixedIndex("app/", paths);
+    }
+
+    private void writePrefixedIndex(String prefix, String... paths) throws IOException {
+        Index index;
+
+        index = new Index();
+        for (String path : paths) {
+            index.add(new Label(path, prefix + path, Hex.decodeString("0123456789abcdef0123456789abcdef")));
+        }
+        index.save(root.join(Lavender.LAVENDER_IDX));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter;
+
+import net.oneandone.lavender.filter.processor.LavenderProcessorFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ResponseBufferTest {
+    private static final String HTML = "<html><img src='a.png'></html>";
+    private static final String EXPECTED = "<html><img src='/cdn/a.png'></html>";
+
+    private ByteArrayOutputStream body;
+    private Map<String, String> headers;
+    private int contentLength;
+    private int status;
+
+    @BeforeEach
+    public void setUp() {
+        body = new ByteArrayOutputStream();
+        headers = new HashMap<>();
+        contentLength = -2;
+        status = 200;
+    }
+
+    @Test
+    public void testSmallBody() throws IOException {
+        serve(config(1024, 0), HTML, false, null, "text/html");
+        assertEquals(EXPECTED, body.toString("UTF-8"));
+        assertEquals(EXPECTED.length(), contentLength);
+        assertNotNull(headers.get("ETag"));
+        assertNull(headers.get("Content-Encoding"));
+    }
+
+    @Test
+    public void testNotModified() throws IOException {
+        String etag;
+
+        serve(config(1024, 0), HTML, false, null, "text/html");
+        etag = headers.get("ETag");
+        setUp();
+        serve(config(1024, 0), HTML, false, "\"foo\", W/" + etag, "text/html");
+        assertEquals(304, status);
+        assertEquals(0, body.size());
+        assertEquals(-2, contentLength);
+        setUp();
+        serve(config(1024, 0), HTML + " ", false, etag, "text/html");
+        assertEquals(200, status);
+        assertEquals(EXPECTED + " ", body.toString("UTF-8"));
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        String plainTag;
+
+        serve(config(1024, 0), "p { }", false, null, "text/css");
+        plainTag = headers.get("ETag");
+        setUp();
+        serve(config(1024, 0), "p { }", true, null, "text/css");
+        assertEquals("gzip", headers.get("Content-Encoding"));
+        assertEquals(body.size(), contentLength);
+        assertEquals("p { }", gunzip(body.toByteArray()));
+        assertFalse(plainTag.equals(headers.get("ETag")));
+    }
+
+    @Test
+    public void testGzipMinSize() throws IOException {
+        serve(config(1024, 10), "p { }", true, null, "text/css");
+        assertNull(headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", headers.get("Vary"));
+        assertEquals("p { }", body.toString("UTF-8"));
+        assertEquals(5, contentLength);
+        setUp();
+        serve(config(1024, 10), "p { background: none; }", true, null, "text/css");
+        assertEquals("gzip", headers.get("Content-Encoding"));
+        assertEquals("p { background: none; }", gunzip(body.toByteArray()));
+    }
+
+    @Test
+    public void testLargeBody() throws IOException {
+        StringBuilder css = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+
+        for (int i = 0; i < 100; i++) {
+            css.append("a { background: url(a.png) }\n");
+            expected.append("a { background: url(/cdn/a.png) }\n");
+        }
+        for (boolean gzip : new boolean[] { false, true }) {
+            setUp();
+            serve(config(1024, 0), css.toString(), gzip, null, "text/css");
+            assertEquals(expected.toString(), gzip ? gunzip(body.toByteArray()) : body.toString("UTF-8"));
+            assertEquals(-2, contentLength);
+            assertNull(headers.get("ETag"));
+            assertEquals(gzip ? "gzip" : null, headers.get("Content-Encoding"));
+        }
+    }
+
+    @Test
+    public void testMatches() {
+        assertFalse(LavenderizeHttpServletResponse.matches(null, "\"a\""));
+        assertTrue(LavenderizeHttpServletResponse.matches("\"a\"", "\"a\""));
+        assertTrue(LavenderizeHttpServletResponse.matches("\"b\" , W/\"a\"", "\"a\""));
+        assertTrue(LavenderizeHttpServletResponse.matches("*", "\"a\""));
+        assertFalse(LavenderizeHttpServletResponse.matches("\"ab\"", "\"a\""));
+    }
+
+    private static ResponseConfig config(int bufferSize, int gzipMinSize) {
+        return new ResponseConfig(null, new GzipPool(-1, 512, 1), new BufferPool(bufferSize, 1), gzipMinSize);
+    }
+
+    private void serve(ResponseConfig config, String content, boolean gzip, String ifNoneMatch, String contentType) throws IOException {
+        HttpServletResponse wrapped = mock(HttpServletResponse.class);
+        LavenderProcessorFactory factory = new LavenderProcessorFactory((reference, baseURI, contextPath) -> "/cdn/" + reference);
+        LavenderizeHttpServletResponse response;
+
+        when(wrapped.getContentType()).thenReturn(contentType + ";charset=UTF-8");
+        when(wrapped.getCharacterEncoding()).thenReturn("UTF-8");
+        when(wrapped.getStatus()).thenAnswer(invocation -> status);
+        when(wrapped.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+        when(wrapped.getWriter()).thenReturn(new PrintWriter(body));
+        doAnswer(invocation -> contentLength = invocation.getArgument(0)).when(wrapped).setContentLength(anyInt());
+        doAnswer(invocation -> status = invocation.getArgument(0)).when(wrapped).setStatus(anyInt());
+        doAnswer(invocation -> headers.put(invocation.getArgument(0), invocation.getArgument(1))).when(wrapped).setHeader(anyString(), anyString());
+        doAnswer(invocation -> headers.put(invocation.getArgument(0), invocation.getArgument(1))).when(wrapped).addHeader(anyString(), anyString());
+        response = new LavenderizeHttpServletResponse(wrapped, factory, URI.create("http://localhost/app/index.html"), null,
+                "/app/", gzip, ifNoneMatch, config);
+        response.getWriter().write(content);
+        response.close();
+    }
+
+    private static String gunzip(byte[] bytes) throws IOException {
+        try (GZIPInputStream src = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return new String(src.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
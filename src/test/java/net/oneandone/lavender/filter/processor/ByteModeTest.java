@@ -0,0 +1,101 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter.processor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ByteModeTest {
+    private static final URI BASE = URI.create("http://x.y.z");
+
+    private static final RewriteEngine ENGINE = (reference, baseURI, contextPath) -> {
+        if (reference.startsWith("/img/")) {
+            return "http://cdn/" + reference.substring(5);
+        }
+        return reference;
+    };
+
+    @Test
+    public void html() throws IOException {
+        check(new HtmlProcessor(), new HtmlProcessor(), StandardCharsets.UTF_8,
+                "<html><head><title>Grüße – 日本</title>"
+                + "<style>p { background: url(/img/ä.png) }</style></head>"
+                + "<body><img src=\"/img/a.gif\" alt=\"€\"><a href='/img/ö ü.html'>ö</a>"
+                + "<div style=\"background-image: url('/img/b.gif')\">🙂</div></body></html>");
+    }
+
+    @Test
+    public void unquoted() throws IOException {
+        // \u3060 is e3 81 a0 in utf-8; a0 must not be taken for a space
+        check(new HtmlProcessor(), new HtmlProcessor(), StandardCharsets.UTF_8,
+                "<p><a href=/img/\u3060.html title=\u3060 >\u3060</a><img data-\u3060=\u3060 src=/img/\u3060\u3060.gif alt=\u3060 ></p>");
+    }
+
+    @Test
+    public void css() throws IOException {
+        check(new CssProcessor(), new CssProcessor(), StandardCharsets.UTF_8,
+                "/* ümlaut */ .a { background: url(/img/ß.gif) } .b { content: \"日本\"; background: url( '/img/b.gif' ) }");
+    }
+
+    @Test
+    public void latin1() throws IOException {
+        check(new HtmlProcessor(), new HtmlProcessor(), StandardCharsets.ISO_8859_1,
+                "<p>Grüße</p><img src=\"/img/é.gif\">");
+    }
+
+    @Test
+    public void asciiCompatible() {
+        assertTrue(AbstractProcessor.isAsciiCompatible(StandardCharsets.UTF_8));
+        assertTrue(AbstractProcessor.isAsciiCompatible(StandardCharsets.ISO_8859_1));
+        assertTrue(AbstractProcessor.isAsciiCompatible(Charset.forName("windows-1252")));
+        assertFalse(AbstractProcessor.isAsciiCompatible(StandardCharsets.UTF_16));
+    }
+
+    private static void check(Processor charMode, Processor byteMode, Charset charset, String input) throws IOException {
+        StringWriter chars;
+        ByteArrayOutputStream bytes;
+        byte[] data;
+
+        chars = new StringWriter();
+        charMode.setRewriteEngine(ENGINE, BASE, "/");
+        charMode.setWriter(chars);
+        charMode.process(input, 0, input.length());
+        charMode.close();
+
+        bytes = new ByteArrayOutputStream();
+        byteMode.setRewriteEngine(ENGINE, BASE, "/");
+        byteMode.setOutputStream(bytes, charset);
+        data = input.getBytes(charset);
+        // small chunks to split multi-byte sequences and tokens
+        for (int i = 0; i < data.length; i += 7) {
+            byteMode.process(data, i, Math.min(7, data.length - i));
+        }
+        byteMode.close();
+
+        assertTrue(chars.toString().contains("http://cdn/"));
+        assertEquals(chars.toString(), new String(bytes.toByteArray(), charset));
+    }
+}
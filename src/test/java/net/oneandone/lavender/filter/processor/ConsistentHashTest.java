@@ -16,7 +16,7 @@
 package net.oneandone.lavender.filter.processor;
 
 import net.oneandone.lavender.index.Hex;
-import net.oneandone.lavender.index.Util;
+import net.oneandone.lavender.index.Md5;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -56,7 +56,7 @@ public class ConsistentHashTest {
     @Test()
     public void testEmptyCircle() {
         ConsistentHash consistentHash = new ConsistentHash(200, new String[] {});
-        byte[] md5 = Util.md5();
+        byte[] md5 = Md5.md5();
         assertThrows(IllegalStateException.class, () -> {
             consistentHash.getNodeForHash(md5);
         });
@@ -64,7 +64,7 @@ public class ConsistentHashTest {
 
     @Test
     public void testKeyString() {
-        String md5Hex = Hex.encodeString(Util.md5());
+        String md5Hex = Hex.encodeString(Md5.md5());
         assertEquals("d41d8cd98f00b204e9800998ecf8427e", md5Hex);
 
         Integer key = ch.key("");
@@ -76,7 +76,7 @@ public class ConsistentHashTest {
 
     @Test
     public void testKeyByteArray() {
-        byte[] md5 = Util.md5();
+        byte[] md5 = Md5.md5();
         String md5Hex = Hex.encodeString(md5);
         assertEquals("d41d8cd98f00b204e9800998ecf8427e", md5Hex);
 
@@ -96,7 +96,7 @@ public class ConsistentHashTest {
         // count how often a node is used
         for (int i = 0; i < 1000000; i++) {
             String s = "" + i;
-            byte[] md5 = Util.md5(s.getBytes());
+            byte[] md5 = Md5.md5(s.getBytes());
             String node = ch.getNodeForHash(md5);
 
             if (!map.containsKey(node)) {
@@ -0,0 +1,113 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter.processor;
+
+import net.oneandone.lavender.index.Md5;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FrozenConsistentHashTest {
+
+    private ConsistentHash ch;
+    private FrozenConsistentHash frozen;
+
+    @BeforeEach
+    public void setUp() {
+        ch = new ConsistentHash(200, new String[] { "n1", "n2", "n3", "n4" });
+        frozen = ch.freeze();
+    }
+
+    @Test
+    public void testSize() {
+        assertEquals(800, frozen.size());
+        ch.addNode("n5");
+        assertEquals(800, frozen.size());
+        assertEquals(1000, ch.freeze().size());
+    }
+
+    @Test
+    public void testEmptyCircle() {
+        FrozenConsistentHash empty = new ConsistentHash(200, new String[] {}).freeze();
+        byte[] md5 = Md5.md5();
+        assertThrows(IllegalStateException.class, () -> {
+            empty.getNodeForHash(md5);
+        });
+    }
+
+    @Test
+    public void testSameNodes() {
+        byte[] md5;
+
+        for (int i = 0; i < 100000; i++) {
+            md5 = Md5.md5(("" + i).getBytes());
+            assertEquals(ch.getNodeForHash(md5), frozen.getNodeForHash(md5));
+        }
+    }
+
+    @Test
+    public void testRingPoints() {
+        byte[] md5;
+
+        // exact ring points, and the wrap-around beyond the last point
+        for (Map.Entry<Integer, String> entry : ch.circle.entrySet()) {
+            md5 = md5WithKey(entry.getKey());
+            assertEquals(entry.getValue(), frozen.getNodeForHash(md5));
+            md5 = md5WithKey(entry.getKey() + 1);
+            assertEquals(ch.getNodeForHash(md5), frozen.getNodeForHash(md5));
+        }
+        md5 = md5WithKey(Integer.MAX_VALUE);
+        assertEquals(ch.circle.get(ch.circle.firstKey()), frozen.getNodeForHash(md5));
+        md5 = md5WithKey(Integer.MIN_VALUE);
+        assertEquals(ch.getNodeForHash(md5), frozen.getNodeForHash(md5));
+    }
+
+    @Test
+    public void testEqualDistribution() {
+        Map<String, AtomicInteger> map = new TreeMap<>();
+
+        for (int i = 0; i < 1000000; i++) {
+            String node = frozen.getNodeForHash(Md5.md5(("" + i).getBytes()));
+            map.computeIfAbsent(node, key -> new AtomicInteger()).incrementAndGet();
+        }
+
+        int count = 0;
+        for (AtomicInteger atomicInteger : map.values()) {
+            assertTrue(atomicInteger.get() > 230000);
+            assertTrue(atomicInteger.get() < 270000);
+            count += atomicInteger.get();
+        }
+        assertEquals(4, map.size());
+        assertEquals(1000000, count);
+    }
+
+    private static byte[] md5WithKey(int key) {
+        byte[] md5 = new byte[16];
+
+        md5[0] = (byte) (key >>> 24);
+        md5[1] = (byte) (key >>> 16);
+        md5[2] = (byte) (key >>> 8);
+        md5[3] = (byte) key;
+        return md5;
+    }
+}
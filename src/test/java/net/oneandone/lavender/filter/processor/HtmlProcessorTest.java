@@ -34,10 +34,11 @@ public class HtmlProcessorTest {
 
     protected StringWriter out;
     protected Processor processor;
+    protected RewriteEngine rewriteEngine;
 
     @BeforeEach
     public void setUp() {
-        RewriteEngine rewriteEngine = mock(RewriteEngine.class);
+        rewriteEngine = mock(RewriteEngine.class);
         when(rewriteEngine.rewrite(any(String.class), eq(URI.create("http://x.y.z")), anyString())).thenReturn("http://a.b.c");
 
         processor = new HtmlProcessor();
@@ -512,4 +513,47 @@ public class HtmlProcessorTest {
 
         assertEquals(expected, out.getBuffer().toString());
     }
+
+    @Test
+    public void testBlockProcessingMatchesCharwise() throws IOException {
+        String input = "<!DOCTYPE html><html><!-- x -- > - --><![CDATA[ <img src='/a'> ]] ]]>"
+                + "<img alt=\"a > b\" src=\"/a/b/c\"><p class='x'>text <b>bold</b></p>"
+                + "<div style='background: url(/x)'>...</div><a href=/x/y/z>x</a>";
+        StringWriter expected = new StringWriter();
+        HtmlProcessor charwise = new HtmlProcessor() {
+            @Override
+            protected void processChars(char[] chars, int start, int end) throws IOException {
+                for (int i = start; i < end; i++) {
+                    process(chars[i]);
+                }
+            }
+        };
+        charwise.setRewriteEngine(rewriteEngine, URI.create("http://x.y.z"), "/");
+        charwise.setWriter(expected);
+        charwise.process(input, 0, input.length());
+        charwise.flush();
+
+        for (int i = 0; i < input.length(); i += 7) {
+            processor.process(input, i, Math.min(7, input.length() - i));
+        }
+        processor.flush();
+
+        assertEquals(expected.toString(), out.getBuffer().toString());
+    }
+
+    @Test
+    public void testReset() throws IOException {
+        String input = "<html><div style='abc url(/a/b/c);'><img src='/a/b/c'>";
+        String expected = "<html><div style='abc url(http://a.b.c);'><img src='http://a.b.c'>";
+
+        processor.process("<!-- <img src='/x", 0, 17);
+        processor.reset();
+        processor.setRewriteEngine(rewriteEngine, URI.create("http://x.y.z"), "/");
+        out = new StringWriter();
+        processor.setWriter(out);
+        processor.process(input, 0, input.length());
+        processor.flush();
+
+        assertEquals(expected, out.getBuffer().toString());
+    }
 }
@@ -19,7 +19,9 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class LavenderProcessorFactoryTest {
@@ -63,4 +65,25 @@ public class LavenderProcessorFactoryTest {
         assertNull(nullProcessor);
     }
 
+    @Test
+    public void testNoRecyclingByDefault() {
+        Processor first = processorFactory.createProcessor("text/html", null, "/");
+        processorFactory.releaseProcessor(first);
+        assertNotSame(first, processorFactory.createProcessor("text/html", null, "/"));
+    }
+
+    @Test
+    public void testRecycling() {
+        LavenderProcessorFactory factory = new LavenderProcessorFactory(null, 3);
+        Processor html = factory.createProcessor("text/html", null, "/");
+        Processor css = factory.createProcessor("text/css", null, "/");
+
+        // pool is empty while the processors are in use
+        assertNotSame(html, factory.createProcessor("text/html", null, "/"));
+        factory.releaseProcessor(html);
+        factory.releaseProcessor(css);
+        assertSame(html, factory.createProcessor("text/html", null, "/"));
+        assertSame(css, factory.createProcessor("text/css", null, "/"));
+        assertNotSame(html, factory.createProcessor("text/html", null, "/"));
+    }
 }
@@ -18,7 +18,7 @@ package net.oneandone.lavender.filter.processor;
 import net.oneandone.lavender.index.Hex;
 import net.oneandone.lavender.index.Index;
 import net.oneandone.lavender.index.Label;
-import net.oneandone.lavender.index.Util;
+import net.oneandone.lavender.index.Md5;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -36,7 +36,7 @@ public class LavenderRewriteEngineTest {
         Index index;
 
         index = new Index();
-        index.add(new Label("in.jpg", "out.jpg", Util.md5()));
+        index.add(new Label("in.jpg", "out.jpg", Md5.md5()));
         engine = new LavenderRewriteEngine(index);
         engine.add(URI.create("http://s1.cdn.net/"));
         engine.add(URI.create("http://s2.cdn.net/"));
@@ -89,6 +89,76 @@ public class LavenderRewriteEngineTest {
     }
 
 
+    @Test
+    public void rewriteMatchesCalculateURL() {
+        Index index = new Index();
+        index.add(new Label("a b.png", "m1/a b.png", Md5.md5()));
+        LavenderRewriteEngine engine = new LavenderRewriteEngine(index);
+        engine.add(URI.create("http://s1.uicdn.net:8080/m1/"));
+        engine.add(URI.create("https://s1.uicdn.net/m1/"));
+
+        for (String base : new String[] { "http://host.net/", "https://host.net/" }) {
+            for (String reference : new String[] { "/a%20b.png", "/a%20b.png?x=1&y=[2]", "/a%20b.png?x=%26", "/a%20b.png?x=\u00e4" }) {
+                URI baseURI = URI.create(base);
+                assertEquals(engine.rewrite(URI.create(reference), baseURI, "/").toASCIIString(), engine.rewrite(reference, baseURI, "/"));
+            }
+        }
+        assertEquals("http://s1.uicdn.net:8080/m1/m1/a%20b.png?x=1", engine.rewrite("/a%20b.png?x=1", URI.create("http://host.net/"), "/"));
+    }
+
+    //-- cache
+
+    @Test
+    public void rewriteCached() {
+        RewriteCache cache = new RewriteCache(100);
+        engine.setCache(cache);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("http://s1.cdn.net/out.jpg", engine.rewrite("'in.jpg'", URI.create("http://localhost:80/x.html"), "/"));
+            assertEquals("http://s1.cdn.net/out.jpg?a=1", engine.rewrite("/in.jpg?a=1", URI.create("http://localhost:80/x/y.html"), "/"));
+            assertEquals("unknown.jpg", engine.rewrite("unknown.jpg", URI.create("http://localhost:80/x.html"), "/"));
+        }
+        assertEquals(3, cache.getMisses());
+        assertEquals(6, cache.getHits());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void rewriteCachedRelative() {
+        RewriteCache cache = new RewriteCache(100);
+        engine.setCache(cache);
+        assertEquals("http://s1.cdn.net/out.jpg", engine.rewrite("in.jpg", URI.create("http://localhost:80/a.html"), "/"));
+        assertEquals("http://s1.cdn.net/out.jpg", engine.rewrite("in.jpg", URI.create("http://localhost:80/b.html?x=y"), "/"));
+        assertEquals(1, cache.getHits());
+        // different directory and context path must not hit
+        assertEquals("in.jpg", engine.rewrite("in.jpg", URI.create("http://localhost:80/sub/a.html"), "/"));
+        assertEquals("http://s1.cdn.net/out.jpg", engine.rewrite("in.jpg", URI.create("http://localhost:80/app/a.html"), "/app/"));
+        assertEquals("in.jpg", engine.rewrite("in.jpg", URI.create("http://localhost:80/a.html"), "/app/"));
+        assertEquals(1, cache.getHits());
+        assertEquals("http://s1.cdn.net/out.jpg", engine.rewrite("in.jpg", URI.create("http://localhost:80/a.html"), "/"));
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void rewriteCachedScheme() {
+        engine.add(URI.create("https://s1.cdn.net/"));
+        engine.add(URI.create("https://s2.cdn.net/"));
+        engine.setCache(new RewriteCache(100));
+        assertEquals("http://s1.cdn.net/out.jpg", engine.rewrite("/in.jpg", URI.create("http://localhost/"), "/"));
+        assertEquals("https://s1.cdn.net/out.jpg", engine.rewrite("/in.jpg", URI.create("https://localhost/"), "/"));
+        assertEquals("http://s1.cdn.net/out.jpg", engine.rewrite("/in.jpg", URI.create("http://localhost/"), "/"));
+    }
+
+    @Test
+    public void rewriteCacheEviction() {
+        RewriteCache cache = new RewriteCache(2);
+        engine.setCache(cache);
+        engine.rewrite("/a.jpg", URI.create("http://localhost/"), "/");
+        engine.rewrite("/b.jpg", URI.create("http://localhost/"), "/");
+        engine.rewrite("/c.jpg", URI.create("http://localhost/"), "/");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
     //-- calculate URL
 
     @Test
@@ -103,7 +173,7 @@ public class LavenderRewriteEngineTest {
         LavenderRewriteEngine rewriteStrategy = testRewriteStrategy();
         baseURI = URI.create("http://somehost.somedomain.net/abc/def/xyz.html?a=b");
         for (char c = 'A'; c <= 'Z'; c++) {
-            md5 = Util.md5((byte) c);
+            md5 = Md5.md5((byte) c);
             md5str = Hex.encodeString(md5);
             label = new Label("logo.png", md5str + "/logo.png", md5);
             uri = rewriteStrategy.calculateURL(label, baseURI);
@@ -117,7 +187,7 @@ public class LavenderRewriteEngineTest {
         LavenderRewriteEngine engine = new LavenderRewriteEngine(new Index());
         engine.add(URI.create("http://s1.uicdn.net:8080/m1/"));
 
-        byte[] md5 = Util.md5("content".getBytes());
+        byte[] md5 = Md5.md5("content".getBytes());
         String md5str = Hex.encodeString(md5);
         Label label = new Label("logo.png", md5str + "/logo.png", md5);
 
@@ -0,0 +1,58 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter.pt;
+
+import net.oneandone.lavender.filter.processor.ConsistentHash;
+import net.oneandone.lavender.filter.processor.FrozenConsistentHash;
+import net.oneandone.lavender.index.Md5;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.Function;
+
+/**
+ * Compares lookups in the TreeMap-based ConsistentHash with the frozen, array-based variant.
+ */
+@Disabled
+public class ConsistentHashPT {
+    @Test
+    public void testLookup() {
+        ConsistentHash ch = new ConsistentHash(200, new String[] { "s1", "s2", "s3", "s4", "s5", "s6" });
+        FrozenConsistentHash frozen = ch.freeze();
+        byte[][] hashes = new byte[10000][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = Md5.md5(("resource" + i).getBytes());
+        }
+        for (int i = 0; i < 3; i++) {
+            measure("TreeMap", hashes, ch::getNodeForHash);
+            measure("frozen", hashes, frozen::getNodeForHash);
+        }
+    }
+
+    private static void measure(String name, byte[][] hashes, Function<byte[], String> lookup) {
+        int numLoops = 1000;
+        int dummy = 0;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < numLoops; i++) {
+            for (byte[] md5 : hashes) {
+                dummy += lookup.apply(md5).length();
+            }
+        }
+        long t = System.nanoTime() - t0;
+        System.out.printf("ConsistentHash (%s): %d ms, %.1f ns/lookup (%d)", name, t / 1000000,
+                (double) t / numLoops / hashes.length, dummy).println();
+    }
+}
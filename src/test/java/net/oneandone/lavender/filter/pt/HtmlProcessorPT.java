@@ -0,0 +1,101 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter.pt;
+
+import net.oneandone.lavender.filter.processor.HtmlProcessor;
+import net.oneandone.lavender.filter.processor.Processor;
+import net.oneandone.lavender.filter.processor.RewriteEngine;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the throughput of block-oriented HtmlProcessor with char-by-char dispatching.
+ */
+@Disabled
+public class HtmlProcessorPT {
+    private static String page;
+    private static RewriteEngine rewriteEngine;
+
+    @BeforeAll
+    public static void init() {
+        StringBuilder builder;
+
+        builder = new StringBuilder("<!DOCTYPE html><html><head><link rel='stylesheet' href='/css/main.css'/></head><body>\n");
+        while (builder.length() < 300 * 1024) {
+            builder.append("<div class=\"teaser\" style=\"background: url(/img/bg.png)\">\n");
+            builder.append("  <!-- teaser -->\n");
+            builder.append("  <p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore.</p>\n");
+            builder.append("  <a href=\"/products/index.html\"><img src=\"/img/logo.png\" alt=\"Logo\"/></a>\n");
+            builder.append("</div>\n");
+        }
+        builder.append("</body></html>");
+        page = builder.toString();
+        rewriteEngine = (reference, baseURI, contextPath) -> "http://s1.uicdn.net/" + reference;
+    }
+
+    @Test
+    public void testBlockVsCharwise() throws IOException {
+        assertEquals(run(CharwiseHtmlProcessor::new), run(HtmlProcessor::new));
+        for (int i = 0; i < 3; i++) {
+            measure("charwise", CharwiseHtmlProcessor::new);
+            measure("block", HtmlProcessor::new);
+        }
+    }
+
+    private static void measure(String name, Supplier<Processor> factory) throws IOException {
+        int numLoops = 500;
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < numLoops; i++) {
+            run(factory);
+        }
+        long t = System.currentTimeMillis() - t0;
+        long charsPerSec = 1000L * numLoops * page.length() / t;
+        System.out.printf("HtmlProcessor (%s): %d ms, %,d characters/s", name, t, charsPerSec).println();
+    }
+
+    private static String run(Supplier<Processor> factory) throws IOException {
+        Processor processor;
+        StringWriter out;
+
+        processor = factory.get();
+        out = new StringWriter(page.length() + 1024);
+        processor.setRewriteEngine(rewriteEngine, URI.create("http://localhost:8080/a/b/c.html"), "/");
+        processor.setWriter(out);
+        for (int i = 0; i < page.length(); i += 8192) {
+            processor.process(page, i, Math.min(8192, page.length() - i));
+        }
+        processor.flush();
+        return out.toString();
+    }
+
+    /** Dispatches every char to the state machine, i.e. processing without the block fast path. */
+    private static class CharwiseHtmlProcessor extends HtmlProcessor {
+        @Override
+        protected void processChars(char[] chars, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                process(chars[i]);
+            }
+        }
+    }
+}
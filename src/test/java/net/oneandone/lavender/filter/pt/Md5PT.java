@@ -0,0 +1,92 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.filter.pt;
+
+import net.oneandone.lavender.index.Md5;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Compares md5 throughput of one digest behind a global lock (like the former Util.md5) with pooled digests,
+ * for 1 to 8 threads. Pooled digests should scale with the number of cores, the lock stays at one.
+ */
+@Disabled
+public class Md5PT {
+    private static final MessageDigest SHARED;
+
+    static {
+        try {
+            SHARED = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static synchronized byte[] locked(byte[] data) {
+        SHARED.update(data, 0, data.length);
+        return SHARED.digest();
+    }
+
+    @Test
+    public void testScaling() throws Exception {
+        byte[] data = new byte[4096];
+
+        for (int round = 0; round < 2; round++) {
+            for (int threads = 1; threads <= 8; threads *= 2) {
+                measure("locked", threads, data, Md5PT::locked);
+                measure("pooled", threads, data, Md5::md5);
+            }
+        }
+    }
+
+    private static void measure(String name, int threads, byte[] data, Function<byte[], byte[]> md5) throws Exception {
+        int numLoops = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        int dummy = 0;
+
+        for (int i = 0; i < threads; i++) {
+            tasks.add(() -> {
+                int result = 0;
+                for (int j = 0; j < numLoops; j++) {
+                    result += md5.apply(data)[0];
+                }
+                return result;
+            });
+        }
+        long t0 = System.nanoTime();
+        try {
+            for (Future<Integer> future : executor.invokeAll(tasks)) {
+                dummy += future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long t = System.nanoTime() - t0;
+        System.out.printf("Md5 (%s, %d threads): %d ms, %.1f MB/s (%d)", name, threads, t / 1000000,
+                (double) threads * numLoops * data.length / t * 1000, dummy).println();
+    }
+}
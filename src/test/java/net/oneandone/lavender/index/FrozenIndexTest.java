@@ -0,0 +1,82 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class FrozenIndexTest {
+    @Test
+    public void testEmpty() {
+        FrozenIndex frozen = new Index().freeze();
+
+        assertEquals(0, frozen.size());
+        assertEquals(-1, frozen.find("foo.png"));
+        assertNull(frozen.lookup("foo.png"));
+    }
+
+    @Test
+    public void testLookup() {
+        Index index = new Index();
+        FrozenIndex frozen;
+        Label expected;
+        Label label;
+
+        for (int i = 0; i < 5000; i++) {
+            index.add(new Label("img/" + i + ".png", "app/" + i + "-" + i + ".png", Md5.md5(("" + i).getBytes())));
+        }
+        index.add(new Label("short.gif", "app/short.gif", Hex.decodeString("abcdef1234567890")));
+        frozen = index.freeze();
+        assertEquals(index.size(), frozen.size());
+        for (int i = 0; i < 5000; i++) {
+            expected = index.lookup("img/" + i + ".png");
+            label = frozen.lookup("img/" + i + ".png");
+            assertEquals(expected.getOriginalPath(), label.getOriginalPath());
+            assertEquals(expected.getLavendelizedPath(), label.getLavendelizedPath());
+            assertArrayEquals(expected.md5(), label.md5());
+            assertEquals(-1, frozen.find("img/" + i + ".gif"));
+        }
+        assertArrayEquals(Hex.decodeString("abcdef1234567890"), frozen.lookup("short.gif").md5());
+        assertEquals(-1, frozen.find(""));
+    }
+
+    @Test
+    public void testSharedLavendelizedPaths() {
+        Index index = new Index();
+        FrozenIndex frozen;
+
+        index.add(new Label("a.png", new String("app/x.png"), Md5.md5()));
+        index.add(new Label("b.png", new String("app/x.png"), Md5.md5()));
+        frozen = index.freeze();
+        assertSame(frozen.getLavendelizedPath(frozen.find("a.png")), frozen.getLavendelizedPath(frozen.find("b.png")));
+    }
+
+    @Test
+    public void testSnapshot() {
+        Index index = new Index();
+        FrozenIndex frozen;
+
+        index.add(new Label("a.png", "app/a.png", Md5.md5()));
+        frozen = index.freeze();
+        index.add(new Label("b.png", "app/b.png", Md5.md5()));
+        assertEquals(1, frozen.size());
+        assertEquals(-1, frozen.find("b.png"));
+    }
+}
@@ -27,7 +27,7 @@ public class LabelTest {
     @BeforeEach
     public void setup() {
         byte[] data = new byte[] { 0x00, 0x01, 0x7F, (byte) 0x80, (byte) 0x81, (byte) 0xFF };
-        byte[] md5 = Util.md5(data);
+        byte[] md5 = Md5.md5(data);
         String md5hex = Hex.encodeString(md5);
         label = new Label("modules/x/img/close.gif", "x/" + md5hex + "-close.gif", md5);
     }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MappedIndexTest {
+    private static final World WORLD = World.createMinimal();
+
+    @Test
+    public void testEmpty() throws IOException {
+        MappedIndex mapped = saveAndOpen(new Index());
+
+        assertEquals(0, mapped.size());
+        assertEquals(-1, mapped.find("foo.png"));
+    }
+
+    @Test
+    public void testLookup() throws IOException {
+        Index index = new Index();
+        String[] paths = { "a.png", "b.png", "img/äö.gif", "img/€.gif", "img/😀.gif", "img/z.gif", "img/~.gif", "x y.css" };
+        MappedIndex mapped;
+        Label expected;
+        Label label;
+
+        for (int i = 0; i < 3000; i++) {
+            index.add(new Label("img/" + i + ".png", "app/" + (i % 100) + ".png", Md5.md5(("" + i).getBytes())));
+        }
+        for (String path : paths) {
+            index.add(new Label(path, "app/" + path, Md5.md5(path.getBytes())));
+        }
+        mapped = saveAndOpen(index);
+        assertEquals(index.size(), mapped.size());
+        for (Label orig : index) {
+            label = mapped.lookup(orig.getOriginalPath());
+            expected = index.lookup(orig.getOriginalPath());
+            assertEquals(expected.getOriginalPath(), label.getOriginalPath());
+            assertEquals(expected.getLavendelizedPath(), label.getLavendelizedPath());
+            assertArrayEquals(expected.md5(), label.md5());
+        }
+        for (String miss : new String[] { "", "a", "a.pn", "a.pngx", "img/ä.gif", "img/😁.gif", "zzz", "img/3000.png" }) {
+            assertNull(mapped.lookup(miss), miss);
+        }
+    }
+
+    @Test
+    public void testReplace() throws IOException {
+        FileNode file = WORLD.getTemp().createTempFile();
+        Index index = new Index();
+        MappedIndex before;
+
+        index.add(new Label("a.png", "app/a.png", Md5.md5("a".getBytes())));
+        MappedIndex.save(index, file);
+        before = MappedIndex.open(file.toPath());
+        index = new Index();
+        index.add(new Label("b.png", "app/b.png", Md5.md5("b".getBytes())));
+        MappedIndex.save(index, file);
+        // the old mapping still sees the old file
+        assertEquals("app/a.png", before.lookup("a.png").getLavendelizedPath());
+        assertNull(MappedIndex.open(file.toPath()).lookup("a.png"));
+        assertEquals("app/b.png", MappedIndex.open(file.toPath()).lookup("b.png").getLavendelizedPath());
+    }
+
+    @Test
+    public void testMd5Length() {
+        Index index = new Index();
+
+        index.add(new Label("a.png", "app/a.png", Hex.decodeString("abcdef1234567890")));
+        assertThrows(IllegalArgumentException.class, () -> {
+            saveAndOpen(index);
+        });
+    }
+
+    @Test
+    public void testCorrupted() throws IOException {
+        FileNode file = WORLD.getTemp().createTempFile();
+        ByteBuffer buffer;
+
+        file.writeString("img/close.gif=app/close.gif\\:abcdef1234567890\n");
+        assertThrows(IOException.class, () -> {
+            MappedIndex.open(file.toPath());
+        });
+        buffer = ByteBuffer.allocate(12);
+        buffer.putInt(MappedIndex.MAGIC).putInt(MappedIndex.VERSION).putInt(5);
+        assertThrows(IOException.class, () -> {
+            new MappedIndex("truncated", buffer);
+        });
+    }
+
+    private static MappedIndex saveAndOpen(Index index) throws IOException {
+        FileNode file = WORLD.getTemp().createTempFile();
+
+        MappedIndex.save(index, file);
+        return MappedIndex.open(file.toPath());
+    }
+}
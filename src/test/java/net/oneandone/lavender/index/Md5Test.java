@@ -0,0 +1,94 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class Md5Test {
+    private static final byte[] DATA = "hello, world".getBytes();
+    private static final String EXPECTED = "e4d7f1b4ed2e42d15898f4b27b019da4";
+
+    @Test
+    public void md5() {
+        assertEquals(EXPECTED, Hex.encodeString(Md5.md5(DATA)));
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", Hex.encodeString(Md5.md5()));
+        assertEquals(EXPECTED, Hex.encodeString(Md5.md5(Arrays.copyOf(DATA, 20), 0, DATA.length)));
+    }
+
+    @Test
+    public void streaming() throws IOException {
+        Md5 md5 = new Md5();
+        byte[] dest = new byte[20];
+
+        md5.update(DATA, 0, 5).update(ByteBuffer.wrap(DATA, 5, 3)).update(new ByteArrayInputStream(DATA, 8, DATA.length - 8));
+        md5.finish(dest, 2);
+        assertEquals(EXPECTED, Hex.encodeString(Arrays.copyOfRange(dest, 2, 18)));
+
+        // finish resets
+        assertArrayEquals(Md5.md5(DATA), md5.update(DATA, 0, DATA.length).finish());
+        assertThrows(IllegalArgumentException.class, () -> md5.finish(new byte[16], 1));
+    }
+
+    @Test
+    public void pool() {
+        Md5 md5 = Md5.borrow();
+
+        md5.update(DATA, 0, 3);
+        Md5.giveBack(md5);
+        // handed back instances are reset
+        md5 = Md5.borrow();
+        assertEquals(EXPECTED, Hex.encodeString(md5.update(DATA, 0, DATA.length).finish()));
+        Md5.giveBack(md5);
+        assertEquals(EXPECTED, Hex.encodeString(Md5.md5(DATA)));
+    }
+
+    @Test
+    public void threads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            tasks.add(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    assertEquals(EXPECTED, Hex.encodeString(Md5.md5(DATA)));
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
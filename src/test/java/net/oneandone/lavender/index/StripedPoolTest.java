@@ -0,0 +1,51 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StripedPoolTest {
+    @Test
+    public void size() {
+        assertEquals(1, new StripedPool<>(1).size());
+        assertEquals(4, new StripedPool<>(3).size());
+        assertEquals(8, new StripedPool<>(8).size());
+        assertThrows(IllegalArgumentException.class, () -> new StripedPool<>(0));
+    }
+
+    @Test
+    public void recycle() {
+        StripedPool<Object> pool;
+        Object first;
+
+        pool = new StripedPool<>(1);
+        first = new Object();
+        assertNull(pool.borrow());
+        assertTrue(pool.giveBack(first));
+        assertFalse(pool.giveBack(new Object()));
+        assertEquals(1, pool.getIdle());
+        assertSame(first, pool.borrow());
+        assertNull(pool.borrow());
+        assertEquals(0, pool.getIdle());
+    }
+}
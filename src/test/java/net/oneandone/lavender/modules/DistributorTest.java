@@ -16,17 +16,28 @@
 package net.oneandone.lavender.modules;
 
 import net.oneandone.lavender.index.Index;
+import net.oneandone.lavender.index.Md5;
 import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.World;
 import net.oneandone.sushi.fs.file.FileNode;
 import net.oneandone.sushi.fs.filter.Predicate;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class DistributorTest {
     @Test
@@ -56,4 +67,129 @@ public class DistributorTest {
         index = distributor.close();
         assertEquals("264/5cfe2cb0a569e7d3daa64ebb35e26/foo/vi_login_now.jpg", index.lookup("vi_login_now.jpg").getLavendelizedPath());
     }
+
+    @Test
+    public void parallelSameAsSequential() throws IOException {
+        World world;
+        Module<?> module;
+
+        world = World.createMinimal();
+        module = module(world);
+        assertEquals(publish(world, module, 1, 1), publish(world, module, 8, 1));
+        assertEquals(publish(world, module, 1, 1), publish(world, module, 1, 3));
+        assertEquals(publish(world, module, 1, 1), publish(world, module, 8, 3));
+    }
+
+    @Test
+    public void hostFailureAborts() throws IOException {
+        World world;
+        FileNode broken;
+        Map<Node, Node> targets;
+        Distributor distributor;
+
+        world = World.createMinimal();
+        broken = world.getTemp().createTempFile(); // not a directory
+        targets = new LinkedHashMap<>();
+        targets.put(world.getTemp().createTempDirectory().join("index.idx"), world.getTemp().createTempDirectory());
+        targets.put(broken.getParent().join("other.idx"), broken);
+        distributor = new Distributor(world.getTemp().createTempDirectory(), targets, new Index(), new Index(), 4);
+        assertThrows(IOException.class, () -> distributor.publish(module(world)));
+    }
+
+    @Test
+    public void bufferSpill() throws IOException {
+        World world;
+        FileNode dir;
+        byte[] data;
+        ByteArrayOutputStream copy;
+        FileNode file;
+
+        world = World.createMinimal();
+        dir = world.getTemp().createTempDirectory();
+        data = new byte[1000];
+        new Random(3).nextBytes(data);
+        try (Distributor.Buffer buffer = new Distributor.Buffer(100, dir.join("spill").toPath())) {
+            buffer.write(data, 0, 60);
+            assertFalse(buffer.isSpilled());
+            buffer.write(data[60]);
+            buffer.write(data, 61, data.length - 61);
+            assertTrue(buffer.isSpilled());
+            assertEquals(data.length, buffer.size());
+            assertEquals(1, dir.join("spill").list().size());
+            assertArrayEquals(Md5.md5(data), buffer.md5());
+
+            copy = new ByteArrayOutputStream();
+            buffer.copyTo(copy);
+            assertArrayEquals(data, copy.toByteArray());
+            file = dir.join("copy");
+            buffer.copyTo(file);
+            assertArrayEquals(data, file.readBytes());
+
+            buffer.reset();
+            assertEquals(0, dir.join("spill").list().size());
+            buffer.write(data, 0, 10);
+            assertFalse(buffer.isSpilled());
+            assertArrayEquals(Md5.md5(Arrays.copyOf(data, 10)), buffer.md5());
+        }
+    }
+
+    private static Module<?> module(World world) throws IOException {
+        FileNode src;
+
+        src = world.getTemp().createTempDirectory();
+        for (int i = 0; i < 200; i++) {
+            // same file names with the same content in different directories map to the same lavendelized path
+            src.join("dir" + (i % 7)).mkdirsOpt();
+            src.join("dir" + (i % 7), "file" + (i % 50) + ".png").writeString("content " + (i % 50));
+        }
+        return new NodeModule(src, "foo", null, true, "", "", world.filter().includeAll()) {
+            @Override
+            protected Map<String, Node> loadEntries() throws Exception {
+                Map<String, Node> result;
+
+                result = new LinkedHashMap<>();
+                for (Node node : src.find(getFilter().predicate(Predicate.FILE))) {
+                    result.put(node.getRelative(src), node);
+                }
+                return result;
+            }
+        };
+    }
+
+    /** @return changed count, index and docroot files, which have to be the same on all hosts */
+    private static List<Object> publish(World world, Module<?> module, int parallel, int hosts) throws IOException {
+        List<FileNode> docroots;
+        FileNode docroot;
+        Map<Node, Node> targets;
+        Distributor distributor;
+        long changed;
+        Index index;
+        Map<String, String> files;
+        Map<String, String> first;
+
+        docroots = new ArrayList<>();
+        targets = new LinkedHashMap<>();
+        for (int i = 0; i < hosts; i++) {
+            docroot = world.getTemp().createTempDirectory();
+            docroots.add(docroot);
+            targets.put(docroot.join("index.idx"), docroot);
+        }
+        distributor = new Distributor(world.getTemp().createTempDirectory(), targets, new Index(), new Index(), parallel);
+        changed = distributor.publish(module);
+        index = distributor.close();
+        first = null;
+        for (FileNode root : docroots) {
+            files = new HashMap<>();
+            for (Node file : root.find("**/*.png")) {
+                files.put(file.getRelative(root), file.readString());
+            }
+            if (first == null) {
+                first = files;
+            } else {
+                assertEquals(first, files);
+            }
+            assertEquals(index, Index.load(root.join("index.idx")));
+        }
+        return Arrays.asList(changed, index, first);
+    }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.lavender.index.Md5;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Md5CacheTest {
+    private static final World WORLD = World.createMinimal();
+
+    @Test
+    public void roundtrip() throws IOException {
+        FileNode file = WORLD.getTemp().createTempDirectory().join("foo.cache");
+
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            assertNull(cache.lookup("a.png", "1"));
+        }
+        assertFalse(file.exists());
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            cache.add("a.png", "1", md5("a"));
+            cache.add("dir/b ä.png", "rev 7", md5("b"));
+            cache.add("a.png", "2", md5("a2"));
+        }
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            assertEquals(2, cache.size());
+            assertNull(cache.lookup("a.png", "1"));
+            assertArrayEquals(md5("a2"), cache.lookup("a.png", "2"));
+            assertArrayEquals(md5("b"), cache.lookup("dir/b ä.png", "rev 7"));
+        }
+    }
+
+    @Test
+    public void appendOnlyWhatChanged() throws IOException {
+        FileNode file = WORLD.getTemp().createTempDirectory().join("foo.cache");
+        byte[] before;
+        byte[] after;
+
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            for (int i = 0; i < 100; i++) {
+                cache.add("file" + i, "1", md5("" + i));
+            }
+        }
+        before = file.readBytes();
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            assertArrayEquals(md5("7"), cache.lookup("file7", "1"));
+        }
+        assertArrayEquals(before, file.readBytes());
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            cache.add("file100", "1", md5("100"));
+        }
+        after = file.readBytes();
+        assertArrayEquals(before, Arrays.copyOf(after, before.length));
+        assertTrue(after.length > before.length);
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            assertEquals(101, cache.size());
+            assertArrayEquals(md5("100"), cache.lookup("file100", "1"));
+        }
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        FileNode file = WORLD.getTemp().createTempDirectory().join("foo.cache");
+        long size;
+
+        for (int round = 0; round < 30; round++) {
+            try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+                for (int i = 0; i < 100; i++) {
+                    cache.add("file" + i, "" + round, md5(i + " " + round));
+                }
+            }
+        }
+        size = file.size();
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            assertEquals(100, cache.size());
+            assertArrayEquals(md5("5 29"), cache.lookup("file5", "29"));
+        }
+        // 3000 records appended without compaction would be much larger
+        assertTrue(size < 30 * 100 * 30, "" + size);
+    }
+
+    @Test
+    public void truncated() throws IOException {
+        FileNode file = WORLD.getTemp().createTempDirectory().join("foo.cache");
+        byte[] bytes;
+
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            cache.add("a", "1", md5("a"));
+            cache.add("b", "1", md5("b"));
+        }
+        bytes = file.readBytes();
+        file.writeBytes(Arrays.copyOf(bytes, bytes.length - 3));
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            assertEquals(1, cache.size());
+            assertArrayEquals(md5("a"), cache.lookup("a", "1"));
+            cache.add("c", "1", md5("c"));
+        }
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            assertEquals(2, cache.size());
+            assertArrayEquals(md5("c"), cache.lookup("c", "1"));
+        }
+    }
+
+    @Test
+    public void textFormat() throws IOException {
+        FileNode file = WORLD.getTemp().createTempDirectory().join("foo.cache");
+
+        file.writeString("a.png 1 0cc175b9c0f1b6a831c399e269772661\nb.png 2 92eb5ffee6ae2fec3ad71c777531578f\n");
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            assertEquals(2, cache.size());
+            assertArrayEquals(md5("a"), cache.lookup("a.png", "1"));
+        }
+        // converted to the binary format
+        assertFalse(file.readString().contains("a.png 1"));
+        try (Md5Cache cache = Md5Cache.loadOrCreate(file)) {
+            assertArrayEquals(md5("b"), cache.lookup("b.png", "2"));
+        }
+    }
+
+    private static byte[] md5(String str) {
+        return Md5.md5(str.getBytes());
+    }
+}
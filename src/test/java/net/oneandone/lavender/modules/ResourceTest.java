@@ -16,7 +16,7 @@
 package net.oneandone.lavender.modules;
 
 import net.oneandone.lavender.index.Hex;
-import net.oneandone.lavender.index.Util;
+import net.oneandone.lavender.index.Md5;
 import net.oneandone.sushi.fs.World;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -63,7 +63,7 @@ public class ResourceTest {
         buffer = new ByteArrayOutputStream();
         resource.writeTo(buffer);
         data = buffer.toByteArray();
-        md5 = Util.md5(data);
+        md5 = Md5.md5(data);
         assertNotNull(md5);
         assertEquals(16, md5.length);
         assertEquals("852e7d76cdb8af7395cd039c0ecc293a", Hex.encodeString(md5));
@@ -0,0 +1,105 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SshBatchTest {
+    private static final World WORLD = World.createMinimal();
+
+    @Test
+    public void accepts() {
+        assertTrue(SshBatch.accepts("app/x y/'quoted'.png"));
+        assertFalse(SshBatch.accepts("app/line\nbreak.png"));
+    }
+
+    /** More and longer names than a single command line could take */
+    @Test
+    public void renameLoop() throws Exception {
+        FileNode dir;
+        Map<String, String> renames;
+        StringBuilder prefix;
+        String name;
+
+        dir = WORLD.getTemp().createTempDirectory();
+        prefix = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            prefix.append("abcdefghi/");
+        }
+        dir.join(prefix.toString()).mkdirs();
+        renames = new LinkedHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            name = prefix + "-" + i + " 'x' \"y\" \\ $z.png";
+            dir.join(prefix + ".atomicUpdate-" + i).writeString("new " + i);
+            dir.join(name).writeString("old");
+            renames.put(name, prefix + ".atomicUpdate-" + i);
+        }
+        assertEquals(0, renameLoop(dir, renames));
+        for (int i = 0; i < 1000; i++) {
+            name = prefix + "-" + i + " 'x' \"y\" \\ $z.png";
+            assertEquals("new " + i, dir.join(name).readString());
+            assertFalse(dir.join(renames.get(name)).exists());
+        }
+
+        renames.clear();
+        renames.put("a", "missing");
+        renames.put("b", prefix + "-0 'x' \"y\" \\ $z.png");
+        assertEquals(1, renameLoop(dir, renames));
+        assertFalse(dir.join("b").exists());
+        dir.deleteTree();
+    }
+
+    /** The same file updated twice in one chunk: tar extracts both entries to the same tmp name, it must be renamed once */
+    @Test
+    public void duplicateUpdate() throws Exception {
+        FileNode dir;
+        Map<String, String> renames;
+
+        dir = WORLD.getTemp().createTempDirectory();
+        dir.join("a.png").writeString("old");
+        renames = new LinkedHashMap<>();
+        dir.join(".atomicUpdate-a.png").writeString("first");
+        renames.put("a.png", ".atomicUpdate-a.png");
+        dir.join(".atomicUpdate-a.png").writeString("second");
+        renames.put("a.png", ".atomicUpdate-a.png");
+        assertEquals(0, renameLoop(dir, renames));
+        assertEquals("second", dir.join("a.png").readString());
+        assertFalse(dir.join(".atomicUpdate-a.png").exists());
+        dir.deleteTree();
+    }
+
+    private static int renameLoop(FileNode dir, Map<String, String> renames) throws IOException, InterruptedException {
+        Process process;
+
+        process = new ProcessBuilder("sh", "-c", SshBatch.RENAME_LOOP).directory(dir.toPath().toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try (OutputStream stdin = process.getOutputStream()) {
+            SshBatch.writeRenames(renames, stdin);
+        }
+        return process.waitFor();
+    }
+}
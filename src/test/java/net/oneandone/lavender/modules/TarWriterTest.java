@@ -0,0 +1,86 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TarWriterTest {
+    private static final World WORLD = World.createMinimal();
+
+    @Test
+    public void extract() throws IOException {
+        FileNode dir;
+        TarWriter tar;
+        String longName;
+        byte[] big;
+
+        dir = WORLD.getTemp().createTempDirectory();
+        longName = "a234567890/b234567890/c234567890/d234567890/e234567890/f234567890/g234567890/h234567890/i234567890/"
+                + "j234567890/file.png";
+        big = new byte[10000];
+        new Random(1).nextBytes(big);
+        try (OutputStream dest = dir.join("test.tar").newOutputStream()) {
+            tar = new TarWriter(dest);
+            write(tar, "empty.txt", new byte[0]);
+            write(tar, "dir/sub/.atomicUpdate-x.png", big);
+            write(tar, longName, "long".getBytes());
+            tar.finish();
+        }
+        dir.exec("tar", "-xf", "test.tar");
+        assertEquals(0, dir.join("empty.txt").size());
+        assertArrayEquals(big, dir.join("dir/sub/.atomicUpdate-x.png").readBytes());
+        assertEquals("long", dir.join(longName).readString());
+    }
+
+    @Test
+    public void incomplete() throws IOException {
+        TarWriter tar = new TarWriter(new ByteArrayOutputStream());
+
+        tar.entry("file", 10, 0).write(1);
+        assertThrows(IllegalStateException.class, tar::finish);
+        assertThrows(IllegalStateException.class, () -> tar.entry("next", 0, 0));
+    }
+
+    @Test
+    public void fits() {
+        StringBuilder name = new StringBuilder();
+
+        assertTrue(TarWriter.fits("a.png"));
+        for (int i = 0; i < 30; i++) {
+            name.append("dir").append(i).append('/');
+        }
+        assertTrue(TarWriter.fits(name + "file.png"));
+        assertFalse(TarWriter.fits(name.toString() + name + "file.png"));
+        assertFalse(TarWriter.fits(name.toString().replace("/", "")));
+    }
+
+    private static void write(TarWriter tar, String name, byte[] data) throws IOException {
+        tar.entry(name, data.length, System.currentTimeMillis()).write(data);
+    }
+}